@@ -0,0 +1,204 @@
+package com.project4;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load generator for comparing TCP server modes.  Opens the given number of connections to one
+ * TCP server at once, and on each one sends PUT and GET requests back to back for the given number
+ * of seconds.  Reports how many connections were served at all, the throughput, and the latency of
+ * each request.  For example, the default server serves one connection at a time however many are
+ * open, while kvstore.tcp.server=THREAD or SELECTOR serves them all.  With a pipeline depth above
+ * one, each connection keeps that many tagged requests in flight.
+ */
+public class BenchmarkMain {
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int KEYS_PER_CONNECTION = 100;
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length < 4 || args.length > 6) {
+      System.err.println("Usage: java -cp client.jar com.project4.BenchmarkMain [host] [port] "
+              + "[connections] [seconds] [get_percent] [pipeline_depth]");
+      System.exit(1);
+    }
+    String host = args[0];
+    int port;
+    int connections;
+    long seconds;
+    int getPercent;
+    int depth;
+    try {
+      port = Integer.parseInt(args[1]);
+      connections = Integer.parseInt(args[2]);
+      seconds = Long.parseLong(args[3]);
+      getPercent = args.length >= 5 ? Integer.parseInt(args[4]) : 50;
+      depth = args.length == 6 ? Math.max(1, Integer.parseInt(args[5])) : 1;
+    } catch (NumberFormatException e) {
+      System.err.println("Port, connections, seconds, get_percent and pipeline_depth must be "
+              + "integers.");
+      System.exit(2);
+      return;
+    }
+
+    List<Connection> clients = new ArrayList<>();
+    CountDownLatch connected = new CountDownLatch(connections);
+    long[] window = new long[2]; // Start and end of the measured window, once all have connected
+    for (int i = 0; i < connections; i++) {
+      Connection client = new Connection(i, host, port, getPercent, depth, connected, window);
+      clients.add(client);
+      client.start();
+    }
+    connected.await();
+    synchronized (window) {
+      window[0] = System.currentTimeMillis();
+      window[1] = window[0] + seconds * 1000;
+      window.notifyAll();
+    }
+    for (Connection client : clients) {
+      client.join();
+    }
+
+    int opened = 0;
+    int served = 0;
+    int failed = 0;
+    int operations = 0;
+    for (Connection client : clients) {
+      opened += client.opened ? 1 : 0;
+      served += client.operations > 0 ? 1 : 0;
+      failed += client.failed ? 1 : 0;
+      operations += client.operations;
+    }
+    long[] latencies = new long[operations];
+    int next = 0;
+    for (Connection client : clients) {
+      for (int j = 0; j < client.operations; j++) {
+        latencies[next++] = client.latencyMicros[j];
+      }
+    }
+    Arrays.sort(latencies);
+    System.out.println("Connections opened: " + opened + " of " + connections + ", served: "
+            + served + ", failed: " + failed);
+    System.out.println("Requests: " + operations + " in " + seconds + "s ("
+            + (operations / Math.max(1, seconds)) + "/s)");
+    if (operations > 0) {
+      System.out.println("Latency ms: p50=" + millis(latencies, 0.50) + " p99="
+              + millis(latencies, 0.99) + " max=" + millis(latencies, 1.0));
+    }
+    System.exit(0);
+  }
+
+  private static String millis(long[] sortedMicros, double percentile) {
+    int index = (int) Math.ceil(percentile * sortedMicros.length) - 1;
+    index = Math.max(0, Math.min(sortedMicros.length - 1, index));
+    return String.format("%.2f", sortedMicros[index] / 1000.0);
+  }
+
+  /**
+   * One client connection, sending requests on its own thread until the window ends.
+   */
+  private static class Connection extends Thread {
+    private int number;
+    private String host;
+    private int port;
+    private int getPercent;
+    private int depth;
+    private CountDownLatch connected;
+    private final long[] window;
+    private boolean opened = false;
+    private boolean failed = false;
+    private int operations = 0;
+    private long[] latencyMicros = new long[1024];
+
+    private Connection(int number, String host, int port, int getPercent, int depth,
+                       CountDownLatch connected, long[] window) {
+      super("benchmark-" + number);
+      setDaemon(true);
+      this.number = number;
+      this.host = host;
+      this.port = port;
+      this.getPercent = getPercent;
+      this.depth = depth;
+      this.connected = connected;
+      this.window = window;
+    }
+
+    @Override
+    public void run() {
+      try (Socket socket = new Socket()) {
+        try {
+          socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+          opened = true;
+        } finally {
+          connected.countDown();
+        }
+        socket.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        Map<String, Long> sentAt = new HashMap<>(); // By tag, or "" for an untagged request
+        int sent = 0;
+        long end = awaitWindow();
+        long now;
+        while ((now = System.currentTimeMillis()) < end) {
+          while (sentAt.size() < depth) {
+            String tag = depth > 1 ? "#" + (++sent) : "";
+            sentAt.put(tag, System.nanoTime());
+            out.println((depth > 1 ? tag + " " : "") + nextRequest());
+          }
+          // A server that is busy with other connections may not answer before the window ends
+          socket.setSoTimeout((int) Math.max(1, end - now));
+          String response = in.readLine();
+          if (response == null || response.endsWith("ERROR")) {
+            failed = true;
+            return;
+          }
+          Long requestSentAt = sentAt.remove(depth > 1 ? response.split(" ")[0] : "");
+          if (requestSentAt == null) {
+            failed = true;
+            return;
+          }
+          record((System.nanoTime() - requestSentAt) / 1000);
+        }
+      } catch (SocketTimeoutException e) {
+        // The window ended while waiting for a response
+      } catch (IOException | InterruptedException e) {
+        failed = true;
+      }
+    }
+
+    private String nextRequest() {
+      String key = "b" + number + "-" + ThreadLocalRandom.current().nextInt(KEYS_PER_CONNECTION);
+      if (ThreadLocalRandom.current().nextInt(100) < getPercent) {
+        return "GET " + key;
+      }
+      return "PUT " + key + " v" + operations;
+    }
+
+    private long awaitWindow() throws InterruptedException {
+      synchronized (window) {
+        while (window[1] == 0) {
+          window.wait();
+        }
+        return window[1];
+      }
+    }
+
+    private void record(long micros) {
+      if (operations == latencyMicros.length) {
+        latencyMicros = Arrays.copyOf(latencyMicros, operations * 2);
+      }
+      latencyMicros[operations++] = micros;
+    }
+  }
+}
@@ -1,7 +1,11 @@
 package com.project4;
 
+import com.project4.client.AsyncRPCClient;
+import com.project4.client.AsyncTCPClient;
+import com.project4.client.AsyncUDPClient;
 import com.project4.client.Client;
 import com.project4.client.RPCClient;
+import com.project4.client.RoutingClient;
 import com.project4.client.TCPClient;
 import com.project4.client.UDPClient;
 
@@ -10,12 +14,16 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 
 /**
  * Main function to communicate with a server application's key-value store.  Supports TCP, UDP, and
  * RPC via Java RMI, and operates in either Manual Mode or Script Mode.  See README.  Available
  * operations are GET, PUT, DELETE, and EXIT.  See Executive Summary regarding protocol used.
+ * Given a comma-separated list of replicas instead of one host and port, the client connects to
+ * all of them and routes each operation; see RoutingClient.
  */
 public class ClientMain extends Main {
   private static final int INSTRUCTION_INDEX = 0;
@@ -23,8 +31,9 @@ public class ClientMain extends Main {
   private static final int VALUE_INDEX = 2;
 
   public static void main(String[] args) {
-    if (args.length != 2) {
+    if (args.length != 1 && args.length != 2) {
       System.err.println("Usage: java -jar client [host] [port]");
+      System.err.println("   or: java -jar client [host:port,host:port,...]");
       System.exit(1);
     }
 
@@ -56,20 +65,10 @@ public class ClientMain extends Main {
         System.exit(3);
     }
 
-    String host = args[0];
-    String port = args[1];
     Client client = null;
     try {
-      switch (version) {
-        case TCP:
-          client = new TCPClient(host, port);
-          break;
-        case UDP:
-          client = new UDPClient(host, port);
-          break;
-        case RPC:
-          client = new RPCClient(host, port);
-      }
+      client = args.length == 1 ? routingClient(version, Arrays.asList(args[0].split(",")))
+              : singleClient(version, args[0], args[1]);
     } catch (IllegalArgumentException e) {
       System.err.println(e.getMessage());
       System.exit(4);
@@ -88,6 +87,32 @@ public class ClientMain extends Main {
     }
   }
 
+  private static Client singleClient(Version version, String host, String port) {
+    Client client = null;
+    switch (version) {
+      case TCP:
+        client = new TCPClient(host, port);
+        break;
+      case UDP:
+        client = new UDPClient(host, port);
+        break;
+      case RPC:
+        client = new RPCClient(host, port);
+    }
+    return client;
+  }
+
+  private static Client routingClient(Version version, List<String> replicas) {
+    switch (version) {
+      case TCP:
+        return new RoutingClient(replicas, AsyncTCPClient::new);
+      case UDP:
+        return new RoutingClient(replicas, AsyncUDPClient::new);
+      default:
+        return new RoutingClient(replicas, AsyncRPCClient::new);
+    }
+  }
+
   private static void preloadValues(Client client) {
     boolean connected = client.openConnection();
     if (!connected) {
@@ -136,6 +161,7 @@ public class ClientMain extends Main {
             "get [key]\n" +
             "del [key]\n" +
             "change_server [host] [port]\n" +
+            "max_lag [state ids, or -1 for any]\n" +
             "exit\n");
     String input = "";
     while (!input.equals("exit")) {
@@ -186,6 +212,13 @@ public class ClientMain extends Main {
           }
         }
         break;
+      case "max_lag":
+        if (tokens.length != 2 || !tokens[1].matches("-?\\d+")) {
+          System.out.println(currentTime() + ">> Invalid command.");
+        } else {
+          client.setMaxLag(Integer.parseInt(tokens[1]));
+        }
+        break;
       case "exit":
         break;
       default:
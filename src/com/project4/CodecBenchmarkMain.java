@@ -0,0 +1,154 @@
+package com.project4;
+
+import com.project4.server.kvStore.Command;
+import com.project4.server.kvStore.paxos.GrantedMessage;
+import com.project4.server.kvStore.paxos.PaxosCodec;
+import com.project4.server.kvStore.paxos.PermissionOutcome;
+import com.project4.server.kvStore.paxos.StateChunk;
+import com.project4.server.kvStore.paxos.SuggestionId;
+import com.project4.server.kvStore.paxos.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Microbenchmark comparing PaxosCodec with Java serialization, which RMI uses, for every message
+ * type the NIO transport and write-ahead log encode.  Each message is round-tripped through both
+ * encodings, and the codec's result is checked by encoding it again and comparing the bytes.
+ * Reports each message's encoded size and the average time to encode and decode it.  Every
+ * message is warmed up with one unmeasured run first.
+ */
+public class CodecBenchmarkMain {
+
+  public static void main(String[] args) throws IOException, ClassNotFoundException {
+    if (args.length > 1) {
+      System.err.println("Usage: java -cp server.jar com.project4.CodecBenchmarkMain [iterations]");
+      System.exit(1);
+    }
+    int iterations;
+    try {
+      iterations = args.length == 1 ? Integer.parseInt(args[0]) : 100000;
+    } catch (NumberFormatException e) {
+      System.err.println("Iterations must be an integer.");
+      System.exit(2);
+      return;
+    }
+
+    System.out.println("message            codec bytes   java bytes   codec ns   java ns");
+    for (Map.Entry<String, Object> message : messages().entrySet()) {
+      Object object = message.getValue();
+      byte[] encoded = checkRoundTrip(object);
+      int javaSize = serialize(object).length;
+      timeCodec(object, iterations); // Warm-up
+      timeJava(object, iterations);
+      long codecNanos = timeCodec(object, iterations);
+      long javaNanos = timeJava(object, iterations);
+      System.out.println(String.format("%-18s %11d %12d %10d %9d", message.getKey(), encoded.length,
+              javaSize, codecNanos, javaNanos));
+    }
+  }
+
+  // One sample of each message type, sized like those a busy cluster sends
+  private static Map<String, Object> messages() {
+    SuggestionId suggestionId = new SuggestionId(42, "3");
+    Value put = new Value(Command.PUT, "key1234", "value1234", "3@lz2k1c0a", 1000);
+    Value delete = new Value(Command.DELETE, "key1234", null, "3@lz2k1c0a", 1001);
+    Value batch = newBatch(2000);
+    SortedMap<Integer, SuggestionId> acceptedIds = new TreeMap<>();
+    SortedMap<Integer, Value> acceptedValues = new TreeMap<>();
+    for (int stateId = 5000; stateId < 5004; stateId++) {
+      // Distinct batches, since Java serialization writes a repeated object as a reference
+      acceptedIds.put(stateId, new SuggestionId(42, "3"));
+      acceptedValues.put(stateId, newBatch(stateId * 64));
+    }
+    byte[] data = new byte[65536];
+    Arrays.fill(data, (byte) 'x');
+
+    Map<String, Object> messages = new LinkedHashMap<>();
+    messages.put("SuggestionId", suggestionId);
+    messages.put("Value PUT", put);
+    messages.put("Value DELETE", delete);
+    messages.put("Value BATCH x64", batch);
+    messages.put("Granted", new GrantedMessage(GrantedMessage.Permission.GRANTED, acceptedIds,
+            acceptedValues));
+    messages.put("NACK", new GrantedMessage(GrantedMessage.Permission.NACK, suggestionId));
+    messages.put("PermissionOutcome", new PermissionOutcome(true, acceptedValues));
+    messages.put("StateChunk 64KB", new StateChunk(5000, 0, 1 << 20, data));
+    messages.put("Chosen values", acceptedValues);
+    messages.put("Suggest arguments", new Object[]{suggestionId, batch, 5004});
+    return messages;
+  }
+
+  private static Value newBatch(long firstSeq) {
+    List<Value> commands = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      commands.add(new Value(Command.PUT, "key" + (firstSeq + i), "value" + i, "3@lz2k1c0a",
+              firstSeq + i));
+    }
+    return new Value(commands);
+  }
+
+  private static byte[] encode(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PaxosCodec.writeObject(new DataOutputStream(bytes), object);
+    return bytes.toByteArray();
+  }
+
+  private static Object decode(byte[] encoded) throws IOException {
+    return PaxosCodec.readObject(new DataInputStream(new ByteArrayInputStream(encoded)));
+  }
+
+  private static byte[] serialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(object);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] serialized) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+      return in.readObject();
+    }
+  }
+
+  // Returns the message's encoding, after checking that decoding it loses nothing
+  private static byte[] checkRoundTrip(Object object) throws IOException {
+    byte[] encoded = encode(object);
+    if (!Arrays.equals(encoded, encode(decode(encoded)))) {
+      throw new IllegalStateException("PaxosCodec did not round-trip " + object.getClass());
+    }
+    return encoded;
+  }
+
+  // Returns the average nanoseconds to encode and decode the message with PaxosCodec
+  private static long timeCodec(Object object, int iterations) throws IOException {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      decode(encode(object));
+    }
+    return (System.nanoTime() - start) / iterations;
+  }
+
+  // Returns the average nanoseconds to serialize and deserialize the message with Java serialization
+  private static long timeJava(Object object, int iterations)
+          throws IOException, ClassNotFoundException {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      deserialize(serialize(object));
+    }
+    return (System.nanoTime() - start) / iterations;
+  }
+}
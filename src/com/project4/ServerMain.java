@@ -2,6 +2,7 @@ package com.project4;
 
 import com.project4.server.RMIServer;
 import com.project4.server.RPCServer;
+import com.project4.server.SelectorTCPServer;
 import com.project4.server.Server;
 import com.project4.server.TCPServer;
 import com.project4.server.UDPServer;
@@ -12,13 +13,16 @@ import java.util.Scanner;
 /**
  * Main function for a server acting as a key-value store.  Supports TCP UDP, and RPC via Java RMI.
  * See README. Available operations are GET, PUT, and DELETE. The server is single-threaded (except
- * in RPC mode) but can queue multiple clients. However, multiple replicas of the server can be
+ * in RPC and UDP mode) but can queue multiple clients, unless kvstore.tcp.server selects a TCP
+ * server that serves many clients at once: THREAD (a thread per connection) or SELECTOR. However, multiple replicas of the server can be
  * maintained to increase availability.  The replicas communicate via RMI. Currently, there is no
  * mechanism to shut down the server while it is running. See Executive Summary regarding protocol
  * used.  In RPC mode, the server does not bind to the port, but uses the value to create a unique
  * RMI URL.
  */
 public class ServerMain extends Main {
+  private static final String TCP_SERVER =
+          System.getProperty("kvstore.tcp.server", "SINGLE").toUpperCase();
 
   public static void main(String[] args) {
     if (args.length != 2) {
@@ -50,7 +54,13 @@ public class ServerMain extends Main {
     } else {
       Server server = null;
       try {
-        server = (version == Version.TCP) ? new TCPServer(port, args[1]) : new UDPServer(port, args[1]);
+        if (version == Version.UDP) {
+          server = new UDPServer(port, args[1]);
+        } else if (TCP_SERVER.equals("SELECTOR")) {
+          server = new SelectorTCPServer(port, args[1]);
+        } else {
+          server = new TCPServer(port, args[1]);
+        }
       } catch (IllegalArgumentException e) {
         System.err.println(e.getMessage());
         System.exit(4);
@@ -0,0 +1,152 @@
+package com.project4;
+
+import com.project4.server.kvStore.ConcurrentStorageEngine;
+import com.project4.server.kvStore.StorageEngine;
+import com.project4.server.kvStore.StripedStorageEngine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Microbenchmark for comparing storage engines.  For each engine, one writer thread keeps putting
+ * keys, as the learner does, while 1, 2, 4, ... up to the given number of reader threads get random
+ * keys for the given number of seconds.  Reports the reads and writes per second of each run.  The
+ * LOCKED engine is a HashMap behind one lock, the naive way to make the original store safe;
+ * CONCURRENT and STRIPED are the engines a server can run with (see kvstore.storage).  Each engine
+ * is warmed up with one unmeasured run first.
+ */
+public class StorageBenchmarkMain {
+  private static final int STRIPES = 64;
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length > 3) {
+      System.err.println("Usage: java -cp server.jar com.project4.StorageBenchmarkMain [seconds] "
+              + "[max_readers] [keys]");
+      System.exit(1);
+    }
+    long seconds;
+    int maxReaders;
+    int keys;
+    try {
+      seconds = args.length >= 1 ? Long.parseLong(args[0]) : 2;
+      maxReaders = args.length >= 2 ? Integer.parseInt(args[1])
+              : Runtime.getRuntime().availableProcessors();
+      keys = args.length == 3 ? Integer.parseInt(args[2]) : 100000;
+    } catch (NumberFormatException e) {
+      System.err.println("Seconds, max_readers and keys must be integers.");
+      System.exit(2);
+      return;
+    }
+
+    String[] keyNames = new String[keys];
+    for (int i = 0; i < keys; i++) {
+      keyNames[i] = "key" + i;
+    }
+    System.out.println("engine      readers   reads/sec   writes/sec");
+    for (String engine : new String[]{"LOCKED", "CONCURRENT", "STRIPED"}) {
+      run(newEngine(engine), keyNames, 1, seconds); // Warm-up
+      for (int readers = 1; readers <= maxReaders; readers *= 2) {
+        long[] rates = run(newEngine(engine), keyNames, readers, seconds);
+        System.out.println(String.format("%-10s %8d %11d %12d", engine, readers, rates[0],
+                rates[1]));
+      }
+    }
+  }
+
+  private static StorageEngine newEngine(String engine) {
+    switch (engine) {
+      case "LOCKED":
+        return new LockedStorageEngine();
+      case "STRIPED":
+        return new StripedStorageEngine(STRIPES);
+      default:
+        return new ConcurrentStorageEngine();
+    }
+  }
+
+  // Returns the reads and writes per second over one run
+  private static long[] run(StorageEngine store, String[] keys, int readers, long seconds)
+          throws InterruptedException {
+    for (String key : keys) {
+      store.put(key, "0");
+    }
+    AtomicBoolean running = new AtomicBoolean(true);
+    LongAdder reads = new LongAdder();
+    LongAdder writes = new LongAdder();
+    List<Thread> threads = new ArrayList<>();
+    threads.add(new Thread(() -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long done = 0;
+      while (running.get()) {
+        store.put(keys[random.nextInt(keys.length)], Long.toString(done++));
+      }
+      writes.add(done);
+    }));
+    for (int i = 0; i < readers; i++) {
+      threads.add(new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long done = 0;
+        while (running.get()) {
+          if (store.get(keys[random.nextInt(keys.length)]) != null) {
+            done++;
+          }
+        }
+        reads.add(done);
+      }));
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(seconds * 1000);
+    running.set(false);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    return new long[]{(long) (reads.sum() / elapsed), (long) (writes.sum() / elapsed)};
+  }
+
+  /**
+   * A HashMap behind one lock, as a baseline.
+   */
+  private static class LockedStorageEngine implements StorageEngine {
+    private Map<String, String> entries = new HashMap<>();
+
+    @Override
+    public synchronized String get(String key) {
+      return entries.get(key);
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+      entries.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+      entries.remove(key);
+    }
+
+    @Override
+    public synchronized void putAll(Map<String, String> entries) {
+      this.entries.putAll(entries);
+    }
+
+    @Override
+    public synchronized int size() {
+      return entries.size();
+    }
+
+    @Override
+    public synchronized Iterator<Map.Entry<String, String>> iterator() {
+      return new HashMap<>(entries).entrySet().iterator();
+    }
+  }
+}
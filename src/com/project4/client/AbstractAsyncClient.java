@@ -0,0 +1,123 @@
+package com.project4.client;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Abstract class for sharing methods between AsyncClient implementations.  The blocking Client
+ * operations wait for their asynchronous counterparts, and report failures the way the other
+ * clients do.  Line-protocol responses are checked and parsed here, and every state id returned by
+ * a PUT or DELETE is recorded in the client's session.
+ */
+public abstract class AbstractAsyncClient extends AbstractClient implements AsyncClient {
+
+  public AbstractAsyncClient(String host, String port) {
+    super(host, port);
+  }
+
+  public AbstractAsyncClient(String host, int port) {
+    super(host, port);
+  }
+
+  @Override
+  public void put(String key, String value) {
+    await(putAsync(key, value));
+  }
+
+  @Override
+  public String get(String key) {
+    return await(getAsync(key));
+  }
+
+  @Override
+  public void delete(String key) {
+    await(deleteAsync(key));
+  }
+
+  // Waits for an operation, returning null and printing the reason if it failed
+  private <T> T await(CompletableFuture<T> operation) {
+    try {
+      return operation.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IllegalArgumentException) {
+        printArgError();
+      } else if (cause instanceof IllegalStateException) {
+        printStaleError();
+      } else if (cause instanceof TimeoutException) {
+        System.out.println(currentTime() + ">> No response. Server timed out.");
+      } else {
+        System.err.println(currentTime() + ">> " + cause.getMessage());
+      }
+    }
+    return null;
+  }
+
+  // Returns a future already failed with an IllegalArgumentException, if any argument is invalid
+  protected <T> CompletableFuture<T> checkArguments(String... arguments) {
+    for (String argument : arguments) {
+      if (isInvalid(argument)) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalArgumentException("Invalid key or value"));
+        return failed;
+      }
+    }
+    return null;
+  }
+
+  // Parses the response to "PUT key value", and returns its session token
+  protected String parsePutResponse(String key, String value, String response) {
+    if (!new ResponseValidator.ValidatePutResponse(key, value).test(response)) {
+      throw invalidResponse(response);
+    }
+    String token = response.split(" ")[3];
+    recordToken(token);
+    return token;
+  }
+
+  // Parses the response to "GET key", and returns its value
+  protected String parseGetResponse(String key, String response) {
+    if (!new ResponseValidator.ValidateGetResponse(key).test(response)) {
+      throw invalidResponse(response);
+    }
+    if (response.equals("STALE")) {
+      throw new IllegalStateException("Server has not caught up to session token " + sessionToken);
+    }
+    return response.split(" ")[4];
+  }
+
+  // Parses the response to "DEL key", and returns its session token
+  protected String parseDeleteResponse(String key, String response) {
+    if (!new ResponseValidator.ValidateDelResponse(key).test(response)) {
+      throw invalidResponse(response);
+    }
+    String token = response.split(" ")[2];
+    recordToken(token);
+    return token;
+  }
+
+  // Parses the response to "LEADER"
+  protected ReplicaStatus parseStatusResponse(String response) {
+    if (!new ResponseValidator.ValidateLeaderResponse().test(response)) {
+      throw invalidResponse(response);
+    }
+    String[] tokens = response.split(" ");
+    List<String> leaderIds = new ArrayList<>();
+    for (String leaderId : tokens[1].split(",")) {
+      leaderIds.add(leaderId.equals("NONE") ? null : leaderId);
+    }
+    return new ReplicaStatus(tokens[2], leaderIds, Integer.parseInt(tokens[3]));
+  }
+
+  private static CompletionException invalidResponse(String response) {
+    return new CompletionException(
+            new ProtocolException("Invalid response from server: " + response));
+  }
+}
@@ -5,7 +5,11 @@ import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 
 /**
- * Abstract class for sharing methods between different Client implementations.
+ * Abstract class for sharing methods between different Client implementations.  Clients keep a
+ * session token: the tokens returned by their PUT and DELETE operations, merged by taking the
+ * highest state id at each position.  A sharded store returns one state id per Paxos group, so a
+ * token may hold several, separated by dots.  GETs carry the token, so that any server answering
+ * them reflects the client's own writes.
  */
 public abstract class AbstractClient implements Client {
   private static final int PORT_MIN = 1024;
@@ -16,6 +20,8 @@ public abstract class AbstractClient implements Client {
 
   protected InetAddress host;
   protected int port;
+  protected String sessionToken = "0"; // Merged tokens of this client's own writes
+  protected int maxLag = -1;
   private SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS");
 
 
@@ -76,8 +82,55 @@ public abstract class AbstractClient implements Client {
             MAX_INPUT_LENGTH + " characters or less.");
   }
 
+  @Override
+  public void setMaxLag(int maxLag) {
+    this.maxLag = maxLag;
+  }
+
+  // Returns true if GETs must carry the session token
+  protected boolean hasSession() {
+    return !sessionToken.equals("0") || maxLag >= 0;
+  }
+
+  // Builds a GET request, with the session token if there is one
+  protected synchronized String getRequest(String key) {
+    if (!hasSession()) {
+      return "GET " + key;
+    }
+    return "GET " + key + " " + sessionToken + " " + maxLag;
+  }
+
+  protected synchronized void recordToken(String token) {
+    sessionToken = mergeTokens(sessionToken, token);
+  }
+
+  // Takes the higher state id at each position.  Tokens of different lengths only meet if the
+  // store's number of shards changed, so the newer one is kept.
+  protected static String mergeTokens(String older, String newer) {
+    String[] olderIds = older.split("\\.");
+    String[] newerIds = newer.split("\\.");
+    if (olderIds.length != newerIds.length) {
+      return newer.equals("0") ? older : newer;
+    }
+    StringBuilder merged = new StringBuilder();
+    for (int i = 0; i < newerIds.length; i++) {
+      if (i > 0) {
+        merged.append('.');
+      }
+      merged.append(Math.max(Integer.parseInt(olderIds[i]), Integer.parseInt(newerIds[i])));
+    }
+    return merged.toString();
+  }
+
+  protected void printStaleError() {
+    System.out.println(currentTime() + ">> Server has not caught up to session token " + sessionToken
+            + ". Try another server.");
+  }
+
   protected String currentTime() {
-    return dateFormatter.format(System.currentTimeMillis());
+    synchronized (dateFormatter) {
+      return dateFormatter.format(System.currentTimeMillis());
+    }
   }
 
   @Override
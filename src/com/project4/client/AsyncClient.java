@@ -0,0 +1,46 @@
+package com.project4.client;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client whose operations return futures instead of blocking, so that one caller can keep many
+ * operations in flight.  A future fails with an IllegalArgumentException if a key or value breaks
+ * the protocol's rules, an IllegalStateException if the server could not catch up to the client's
+ * session in time, a TimeoutException if the server did not answer, or an IOException if the server
+ * could not be reached or sent an invalid response.  The futures may be completed on a client's
+ * internal threads, so dependent actions should be brief.
+ */
+public interface AsyncClient extends Client {
+
+  /**
+   * Requests a put operation on the key-value store server.
+   *
+   * @param key   the key
+   * @param value the value
+   * @return completed with a session token naming the state id the put was executed at
+   */
+  CompletableFuture<String> putAsync(String key, String value);
+
+  /**
+   * Requests a get operation on the key-value store server.
+   *
+   * @param key the key
+   * @return completed with the value associated with this key, or '[NULL]' if none
+   */
+  CompletableFuture<String> getAsync(String key);
+
+  /**
+   * Requests a delete operation on the key-value store server.
+   *
+   * @param key the key
+   * @return completed with a session token naming the state id the delete was executed at
+   */
+  CompletableFuture<String> deleteAsync(String key);
+
+  /**
+   * Asks the server which replica it believes leads the cluster.
+   *
+   * @return completed with the server's status
+   */
+  CompletableFuture<ReplicaStatus> statusAsync();
+}
@@ -0,0 +1,125 @@
+package com.project4.client;
+
+import com.project4.server.RPCServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Asynchronous RPC client.  Java RMI calls block, so each operation runs on a pool of caller
+ * threads, and RMI carries the calls in flight over as many connections as it needs.  See
+ * AsyncClient.
+ */
+public class AsyncRPCClient extends AbstractAsyncClient {
+  private static final int RMI_DEFAULT_PORT = 1099;
+  private static final String URL_NAME = "kvinterface";
+
+  private ExecutorService callers = Executors.newCachedThreadPool(task -> {
+    Thread caller = new Thread(task, "async-rpc-client");
+    caller.setDaemon(true);
+    return caller;
+  });
+  private volatile RPCServer store = null;
+
+  public AsyncRPCClient(String host, String port) {
+    super(host, port);
+  }
+
+  public AsyncRPCClient(String host, int port) {
+    super(host, port);
+  }
+
+  @Override
+  public boolean openConnection() {
+    String hostname = host.getHostName();
+    try {
+      if (hostname.equals(InetAddress.getLocalHost().getHostAddress())) {
+        hostname = "localhost";
+      }
+    } catch (UnknownHostException e) {
+      // Do nothing
+    }
+    String registryURL = "rmi://" + hostname + ":" + RMI_DEFAULT_PORT + "/" + URL_NAME + port;
+    try {
+      store = (RPCServer) Naming.lookup(registryURL);
+    } catch (RemoteException | MalformedURLException | NotBoundException e) {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void closeConnection() {
+    // Do nothing. For TCP and UDP only.
+  }
+
+  @Override
+  public CompletableFuture<String> putAsync(String key, String value) {
+    CompletableFuture<String> invalid = checkArguments(key, value);
+    if (invalid != null) {
+      return invalid;
+    }
+    return call(server -> {
+      String token = server.put(key, value);
+      recordToken(token);
+      return token;
+    });
+  }
+
+  @Override
+  public CompletableFuture<String> getAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return call(server -> hasSession() ? server.get(key, sessionToken, maxLag) : server.get(key));
+  }
+
+  @Override
+  public CompletableFuture<String> deleteAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return call(server -> {
+      String token = server.delete(key);
+      recordToken(token);
+      return token;
+    });
+  }
+
+  @Override
+  public CompletableFuture<ReplicaStatus> statusAsync() {
+    return call(server -> parseStatusResponse(server.leader()));
+  }
+
+  private <T> CompletableFuture<T> call(RemoteCall<T> remoteCall) {
+    RPCServer server = store;
+    return CompletableFuture.supplyAsync(() -> {
+      if (server == null) {
+        throw new CompletionException(new IOException("Not connected to a server"));
+      }
+      try {
+        return remoteCall.call(server);
+      } catch (RemoteException e) {
+        throw new CompletionException(new IOException("RemoteException while accessing server", e));
+      }
+    }, callers);
+  }
+
+  /**
+   * One call to the server's remote object.
+   */
+  private interface RemoteCall<T> {
+    T call(RPCServer server) throws RemoteException;
+  }
+}
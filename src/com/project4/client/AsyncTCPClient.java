@@ -0,0 +1,130 @@
+package com.project4.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous TCP client.  Every request is tagged and written to one connection without waiting,
+ * and a reader thread completes each request's future when its tagged response arrives, so one
+ * caller can keep hundreds of operations in flight.  See AsyncClient.
+ */
+public class AsyncTCPClient extends AbstractAsyncClient {
+  private Socket connection = null;
+  private PrintWriter out = null;
+  private TaggedRequests requests = null;
+
+  public AsyncTCPClient(String host, String port) {
+    super(host, port);
+  }
+
+  public AsyncTCPClient(String host, int port) {
+    super(host, port);
+  }
+
+  @Override
+  public boolean openConnection() {
+    closeConnection();
+    try {
+      Socket socket = new Socket();
+      socket.connect(new InetSocketAddress(host, port), SERVER_TIMEOUT_MILLIS);
+      socket.setTcpNoDelay(true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      TaggedRequests opened = new TaggedRequests(SERVER_TIMEOUT_MILLIS);
+      Thread reader = new Thread(() -> readResponses(in, opened), "async-tcp-client-reader");
+      reader.setDaemon(true);
+      reader.start();
+      synchronized (this) {
+        connection = socket;
+        out = new PrintWriter(socket.getOutputStream(), true);
+        requests = opened;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void closeConnection() {
+    try {
+      if (connection != null) {
+        connection.close();
+      }
+    } catch (IOException e) {
+      System.err.println(currentTime() + ">> Error closing connection with server.");
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> putAsync(String key, String value) {
+    CompletableFuture<String> invalid = checkArguments(key, value);
+    if (invalid != null) {
+      return invalid;
+    }
+    return send("PUT " + key + " " + value)
+            .thenApply(response -> parsePutResponse(key, value, response));
+  }
+
+  @Override
+  public CompletableFuture<String> getAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return send(getRequest(key)).thenApply(response -> parseGetResponse(key, response));
+  }
+
+  @Override
+  public CompletableFuture<String> deleteAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return send("DEL " + key).thenApply(response -> parseDeleteResponse(key, response));
+  }
+
+  @Override
+  public CompletableFuture<ReplicaStatus> statusAsync() {
+    return send("LEADER").thenApply(this::parseStatusResponse);
+  }
+
+  private CompletableFuture<String> send(String request) {
+    TaggedRequests current;
+    PrintWriter writer;
+    synchronized (this) {
+      current = requests;
+      writer = out;
+    }
+    if (current == null) {
+      CompletableFuture<String> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IOException("Not connected to a server"));
+      return failed;
+    }
+    return current.send(request, line -> {
+      writer.println(line);
+      if (writer.checkError()) {
+        throw new IOException("Could not send request to server");
+      }
+    });
+  }
+
+  // Runs on the connection's reader thread until the connection closes.
+  private void readResponses(BufferedReader in, TaggedRequests opened) {
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!opened.complete(line)) {
+          System.err.println(currentTime() + ">> Response matches no request: " + line);
+        }
+      }
+    } catch (IOException e) {
+      // The connection was closed
+    }
+    opened.failAll(new IOException("Connection to server closed"));
+  }
+}
@@ -0,0 +1,125 @@
+package com.project4.client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous UDP client.  Every request is tagged and sent without waiting, and a receiver thread
+ * completes each request's future when its tagged response arrives.  Unlike UDPClient, the socket
+ * is bound to any free local port, so several clients can run on one machine.  A lost packet is
+ * not resent; its request times out.  See AsyncClient.
+ */
+public class AsyncUDPClient extends AbstractAsyncClient {
+  private static final int BUFFER_SIZE = 65507; // Largest UDP payload; tokens grow with shards
+
+  private DatagramSocket connection = null;
+  private TaggedRequests requests = null;
+
+  public AsyncUDPClient(String host, String port) {
+    super(host, port);
+  }
+
+  public AsyncUDPClient(String host, int port) {
+    super(host, port);
+  }
+
+  @Override
+  public boolean openConnection() {
+    closeConnection();
+    try {
+      DatagramSocket socket = new DatagramSocket();
+      TaggedRequests opened = new TaggedRequests(SERVER_TIMEOUT_MILLIS);
+      Thread receiver = new Thread(() -> receiveResponses(socket, opened),
+              "async-udp-client-receiver");
+      receiver.setDaemon(true);
+      receiver.start();
+      synchronized (this) {
+        connection = socket;
+        requests = opened;
+      }
+    } catch (SocketException e) {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized void closeConnection() {
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> putAsync(String key, String value) {
+    CompletableFuture<String> invalid = checkArguments(key, value);
+    if (invalid != null) {
+      return invalid;
+    }
+    return send("PUT " + key + " " + value)
+            .thenApply(response -> parsePutResponse(key, value, response));
+  }
+
+  @Override
+  public CompletableFuture<String> getAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return send(getRequest(key)).thenApply(response -> parseGetResponse(key, response));
+  }
+
+  @Override
+  public CompletableFuture<String> deleteAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return send("DEL " + key).thenApply(response -> parseDeleteResponse(key, response));
+  }
+
+  @Override
+  public CompletableFuture<ReplicaStatus> statusAsync() {
+    return send("LEADER").thenApply(this::parseStatusResponse);
+  }
+
+  private CompletableFuture<String> send(String request) {
+    TaggedRequests current;
+    DatagramSocket socket;
+    synchronized (this) {
+      current = requests;
+      socket = connection;
+    }
+    if (current == null) {
+      CompletableFuture<String> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IOException("Socket is not open"));
+      return failed;
+    }
+    return current.send(request, line -> {
+      byte[] message = line.getBytes();
+      socket.send(new DatagramPacket(message, message.length, host, port));
+    });
+  }
+
+  // Runs on the socket's receiver thread until the socket closes.
+  private void receiveResponses(DatagramSocket socket, TaggedRequests opened) {
+    byte[] buf = new byte[BUFFER_SIZE];
+    DatagramPacket response = new DatagramPacket(buf, buf.length);
+    try {
+      while (true) {
+        response.setLength(buf.length);
+        socket.receive(response);
+        String line = new String(response.getData(), 0, response.getLength()).trim();
+        if (!opened.complete(line)) {
+          System.err.println(currentTime() + ">> Response matches no request: " + line);
+        }
+      }
+    } catch (IOException e) {
+      // The socket was closed
+    }
+    opened.failAll(new IOException("Socket closed"));
+  }
+}
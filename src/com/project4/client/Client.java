@@ -49,4 +49,13 @@ public interface Client {
    */
   boolean change_server(String host, String port);
 
+  /**
+   * Sets how far behind the cluster a GET may be served.  Every GET also reflects this client's own
+   * earlier PUT and DELETE operations, even after changing server.
+   *
+   * @param maxLag most state ids a GET may lag behind the newest state id known to the server, or
+   *               -1 for any
+   */
+  void setMaxLag(int maxLag);
+
 }
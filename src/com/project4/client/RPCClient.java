@@ -53,7 +53,7 @@ public class RPCClient extends AbstractClient implements Client {
   @Override
   public void put(String key, String value) {
     try {
-      store.put(key, value);
+      recordToken(store.put(key, value));
     } catch (RemoteException e) {
       System.err.println(currentTime() + ">> RemoteException while accessing server");
     }
@@ -63,7 +63,9 @@ public class RPCClient extends AbstractClient implements Client {
   public String get(String key) {
     String result = null;
     try {
-      result = store.get(key);
+      result = hasSession() ? store.get(key, sessionToken, maxLag) : store.get(key);
+    } catch (IllegalStateException e) {
+      printStaleError();
     } catch (RemoteException e) {
       System.err.println(currentTime() + ">> RemoteException while accessing server");
     }
@@ -73,7 +75,7 @@ public class RPCClient extends AbstractClient implements Client {
   @Override
   public void delete(String key) {
     try {
-      store.delete(key);
+      recordToken(store.delete(key));
     } catch (RemoteException e) {
       System.err.println(currentTime() + ">> RemoteException while accessing server");
     }
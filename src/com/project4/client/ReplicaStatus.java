@@ -0,0 +1,40 @@
+package com.project4.client;
+
+import java.util.List;
+
+/**
+ * One replica's answer to "LEADER": its own server id, the id of the replica it believes leads each
+ * Paxos group, and the highest state id it has executed.  An unsharded store has one group.
+ */
+public class ReplicaStatus {
+  private String serverId;
+  private List<String> leaderIds;
+  private int stateId;
+
+  public ReplicaStatus(String serverId, List<String> leaderIds, int stateId) {
+    this.serverId = serverId;
+    this.leaderIds = leaderIds;
+    this.stateId = stateId;
+  }
+
+  public String getServerId() {
+    return serverId;
+  }
+
+  public int getGroups() {
+    return leaderIds.size();
+  }
+
+  // Null if the replica knows of no leader for the group
+  public String getLeaderId(int group) {
+    return leaderIds.get(group);
+  }
+
+  public int getStateId() {
+    return stateId;
+  }
+
+  public boolean isLeader(int group) {
+    return serverId.equals(leaderIds.get(group));
+  }
+}
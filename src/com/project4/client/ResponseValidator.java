@@ -22,10 +22,11 @@ class ResponseValidator {
     @Override
     public boolean test(String s) {
       String[] respTokens = s.split(" ");
-      return respTokens.length == 3 &&
+      return respTokens.length == 4 &&
               respTokens[0].equals("PUT") &&
               respTokens[1].equals(key) &&
-              respTokens[2].equals(value);
+              respTokens[2].equals(value) &&
+              isSessionToken(respTokens[3]);
     }
   }
 
@@ -39,6 +40,9 @@ class ResponseValidator {
 
     @Override
     public boolean test(String s) {
+      if (s.equals("STALE")) {
+        return true;
+      }
       String[] respTokens = s.split(" ");
       return respTokens.length == 5 &&
               respTokens[0].equals("GET") &&
@@ -59,9 +63,28 @@ class ResponseValidator {
     @Override
     public boolean test(String s) {
       String[] respTokens = s.split(" ");
-      return respTokens.length == 2 &&
+      return respTokens.length == 3 &&
               respTokens[0].equals("DEL") &&
-              respTokens[1].equals(key);
+              respTokens[1].equals(key) &&
+              isSessionToken(respTokens[2]);
+    }
+  }
+
+  // Validates server's LEADER response
+  static class ValidateLeaderResponse implements Predicate<String> {
+
+    @Override
+    public boolean test(String s) {
+      String[] respTokens = s.split(" ");
+      return respTokens.length == 4 &&
+              respTokens[0].equals("LEADER") &&
+              respTokens[1].matches("[^,]+(,[^,]+)*") &&
+              respTokens[3].matches("-?\\d+");
     }
   }
+
+  // A state id, or one state id per Paxos group separated by dots
+  private static boolean isSessionToken(String token) {
+    return token.matches("\\d+(\\.\\d+)*");
+  }
 }
@@ -0,0 +1,349 @@
+package com.project4.client;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Client that keeps a connection to every replica and routes each operation itself.  PUTs and
+ * DELETEs go to the replica that leads the key's Paxos group, so they neither take a forwarding hop
+ * nor start a proposal that competes with the leader's.  GETs are spread over the other replicas.
+ * <p>
+ * The leaders are found by asking every replica "LEADER", which lists the leader of each group.
+ * For each group, a replica that reports leading it is chosen, else the replica most others name,
+ * else the one that has executed the most state ids.  A key belongs to group
+ * Math.floorMod(key.hashCode(), groups), as on the servers.  When an operation times out or its
+ * replica fails, the leaders are looked up again and the operation is retried on another replica,
+ * so failover needs no change_server.  A write that timed out may already have been executed, and
+ * its retry is a new command, so it may be executed twice.  With other clients writing the same
+ * key, the second execution can overwrite a newer value, so callers that cannot tolerate that must
+ * not share keys between clients.  GETs carry this client's session token, so they reflect its own
+ * writes on whichever replica serves them; a replica too far behind passes the GET on to the key's
+ * leader.
+ */
+public class RoutingClient extends AbstractAsyncClient {
+  private static final String ADDRESS_SEPARATOR = ":";
+
+  private ExecutorService routers = Executors.newCachedThreadPool(task -> {
+    Thread router = new Thread(task, "routing-client");
+    router.setDaemon(true);
+    return router;
+  });
+  private BiFunction<String, String, AbstractAsyncClient> connector;
+  private List<AbstractAsyncClient> replicas = new CopyOnWriteArrayList<>();
+  private Set<AbstractAsyncClient> down = ConcurrentHashMap.newKeySet(); // Failed since last lookup
+  private volatile List<AbstractAsyncClient> leaders = null; // Leader of each group, in order
+  private CompletableFuture<List<AbstractAsyncClient>> lookup = null; // Leader lookup in progress
+  private AtomicInteger nextReader = new AtomicInteger();
+
+  /**
+   * Creates a client for the given replicas.
+   *
+   * @param addresses each replica's "host:port"
+   * @param connector creates the client for one replica from its host and port, for example
+   *                  AsyncTCPClient::new
+   */
+  public RoutingClient(List<String> addresses,
+                       BiFunction<String, String, AbstractAsyncClient> connector) {
+    super(hostOf(firstOf(addresses)), portOf(firstOf(addresses)));
+    this.connector = connector;
+    for (String address : addresses) {
+      replicas.add(connector.apply(hostOf(address), portOf(address)));
+    }
+  }
+
+  private static String firstOf(List<String> addresses) {
+    if (addresses == null || addresses.isEmpty()) {
+      throw new IllegalArgumentException("At least one replica is required.");
+    }
+    return addresses.get(0);
+  }
+
+  private static String hostOf(String address) {
+    int separator = address.lastIndexOf(ADDRESS_SEPARATOR);
+    if (separator < 0) {
+      throw new IllegalArgumentException("Received replica = " + address
+              + ". Replicas must be given as host:port.");
+    }
+    return address.substring(0, separator);
+  }
+
+  private static String portOf(String address) {
+    return address.substring(address.lastIndexOf(ADDRESS_SEPARATOR) + 1);
+  }
+
+  // Succeeds if any replica can be reached
+  @Override
+  public boolean openConnection() {
+    boolean opened = false;
+    for (AbstractAsyncClient replica : replicas) {
+      if (replica.openConnection()) {
+        opened = true;
+      } else {
+        down.add(replica);
+      }
+    }
+    return opened && findLeaders().join() != null;
+  }
+
+  @Override
+  public void closeConnection() {
+    for (AbstractAsyncClient replica : replicas) {
+      replica.closeConnection();
+    }
+  }
+
+  // Adds a replica to the pool, if it is not already there, and looks up the leaders again
+  @Override
+  public boolean change_server(String host, String port) {
+    AbstractAsyncClient replica;
+    try {
+      replica = connector.apply(host, port);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    for (AbstractAsyncClient known : replicas) {
+      if (known.host.equals(replica.host) && known.port == replica.port) {
+        replica = known;
+      }
+    }
+    if (!replica.openConnection()) {
+      return false;
+    }
+    replica.setMaxLag(maxLag);
+    if (!replicas.contains(replica)) {
+      replicas.add(replica);
+    }
+    down.remove(replica);
+    return findLeaders().join() != null;
+  }
+
+  @Override
+  public void setMaxLag(int maxLag) {
+    super.setMaxLag(maxLag);
+    for (AbstractAsyncClient replica : replicas) {
+      replica.setMaxLag(maxLag);
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> putAsync(String key, String value) {
+    CompletableFuture<String> invalid = checkArguments(key, value);
+    if (invalid != null) {
+      return invalid;
+    }
+    return write(key, replica -> replica.putAsync(key, value));
+  }
+
+  @Override
+  public CompletableFuture<String> getAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return route(false, key, replica -> {
+      replica.recordToken(sessionToken());
+      return replica.getAsync(key);
+    }, replicas.size());
+  }
+
+  @Override
+  public CompletableFuture<String> deleteAsync(String key) {
+    CompletableFuture<String> invalid = checkArguments(key);
+    if (invalid != null) {
+      return invalid;
+    }
+    return write(key, replica -> replica.deleteAsync(key));
+  }
+
+  // Returns the status of the replica this client sends group 0's writes to
+  @Override
+  public CompletableFuture<ReplicaStatus> statusAsync() {
+    return route(true, null, AbstractAsyncClient::statusAsync, replicas.size());
+  }
+
+  private CompletableFuture<String> write(String key,
+          Function<AbstractAsyncClient, CompletableFuture<String>> operation) {
+    return route(true, key, operation, replicas.size()).thenApply(token -> {
+      recordToken(token);
+      return token;
+    });
+  }
+
+  private synchronized String sessionToken() {
+    return sessionToken;
+  }
+
+  // Runs an operation on the leader of the key's group, or for a read on another replica, and
+  // retries it on another replica if it times out or its replica fails.  A null key stands for
+  // group 0.
+  private <T> CompletableFuture<T> route(boolean toLeader, String key,
+          Function<AbstractAsyncClient, CompletableFuture<T>> operation, int attempts) {
+    List<AbstractAsyncClient> known = leaders;
+    CompletableFuture<AbstractAsyncClient> target = (known != null
+            ? CompletableFuture.completedFuture(known) : findLeaders())
+            .thenApply(found -> leaderOf(found, key));
+    if (!toLeader) {
+      target = target.thenApply(this::chooseReader);
+    }
+    return target.thenCompose(replica -> {
+      if (replica == null) {
+        throw new CompletionException(new IOException("No replica could be reached"));
+      }
+      return operation.apply(replica).handleAsync((result, e) -> {
+        if (e == null) {
+          return CompletableFuture.completedFuture(result);
+        }
+        Throwable cause = e instanceof CompletionException && e.getCause() != null
+                ? e.getCause() : e;
+        if (attempts <= 1 || cause instanceof IllegalArgumentException
+                || cause instanceof ProtocolException) {
+          throw new CompletionException(cause);
+        }
+        if (cause instanceof IllegalStateException) {
+          if (toLeader || replica == leaderOf(leaders, key)) {
+            throw new CompletionException(cause);
+          }
+          return route(true, key, operation, attempts - 1); // The leader is the most up to date
+        }
+        forget(replica, cause instanceof IOException);
+        return route(toLeader, key, operation, attempts - 1);
+      }, routers).thenCompose(Function.identity());
+    });
+  }
+
+  // Stops routing to a replica that timed out or failed until the next lookup, reconnecting it if
+  // its connection failed
+  private void forget(AbstractAsyncClient replica, boolean reconnect) {
+    down.add(replica);
+    synchronized (this) {
+      if (leaders != null && leaders.contains(replica)) {
+        leaders = null;
+      }
+    }
+    if (reconnect) {
+      replica.openConnection();
+    }
+  }
+
+  // Returns the leader of the key's group, or null if no leaders are known
+  private static AbstractAsyncClient leaderOf(List<AbstractAsyncClient> found, String key) {
+    if (found == null) {
+      return null;
+    }
+    return found.get(key == null ? 0 : Math.floorMod(key.hashCode(), found.size()));
+  }
+
+  // Picks the next replica for a read in turn, skipping the leader while another replica is up
+  private AbstractAsyncClient chooseReader(AbstractAsyncClient currentLeader) {
+    List<AbstractAsyncClient> candidates = new ArrayList<>();
+    for (AbstractAsyncClient replica : replicas) {
+      if (replica != currentLeader && !down.contains(replica)) {
+        candidates.add(replica);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return currentLeader;
+    }
+    return candidates.get(Math.floorMod(nextReader.getAndIncrement(), candidates.size()));
+  }
+
+  // Asks every replica for its status and chooses each group's leader.  Concurrent lookups share
+  // one.
+  private synchronized CompletableFuture<List<AbstractAsyncClient>> findLeaders() {
+    if (lookup != null) {
+      return lookup;
+    }
+    List<AbstractAsyncClient> pool = new ArrayList<>(replicas);
+    List<CompletableFuture<ReplicaStatus>> statuses = new ArrayList<>();
+    for (AbstractAsyncClient replica : pool) {
+      statuses.add(replica.statusAsync().handle((status, e) -> status));
+    }
+    CompletableFuture<List<AbstractAsyncClient>> found = CompletableFuture
+            .allOf(statuses.toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> chooseLeaders(pool, statuses));
+    lookup = found;
+    found.whenComplete((chosen, e) -> {
+      synchronized (this) {
+        lookup = null;
+        leaders = chosen;
+      }
+    });
+    return found;
+  }
+
+  // For each group, prefers a replica that reports leading it, then the replica most others name as
+  // its leader, then the replica that has executed the most.  Returns null if no replica answered.
+  private List<AbstractAsyncClient> chooseLeaders(List<AbstractAsyncClient> pool,
+                                                  List<CompletableFuture<ReplicaStatus>> statuses) {
+    Map<String, AbstractAsyncClient> byServerId = new HashMap<>();
+    Map<AbstractAsyncClient, ReplicaStatus> answered = new HashMap<>();
+    AbstractAsyncClient freshest = null;
+    int freshestStateId = Integer.MIN_VALUE;
+    int groups = 0;
+    for (int i = 0; i < pool.size(); i++) {
+      AbstractAsyncClient replica = pool.get(i);
+      ReplicaStatus status = statuses.get(i).join();
+      if (status == null) {
+        down.add(replica);
+        continue;
+      }
+      down.remove(replica);
+      byServerId.put(status.getServerId(), replica);
+      answered.put(replica, status);
+      groups = Math.max(groups, status.getGroups());
+      if (status.getStateId() > freshestStateId) {
+        freshest = replica;
+        freshestStateId = status.getStateId();
+      }
+    }
+    if (freshest == null) {
+      return null;
+    }
+    List<AbstractAsyncClient> chosen = new ArrayList<>();
+    for (int group = 0; group < groups; group++) {
+      chosen.add(chooseLeader(group, byServerId, answered, freshest));
+    }
+    return chosen;
+  }
+
+  private static AbstractAsyncClient chooseLeader(int group,
+          Map<String, AbstractAsyncClient> byServerId,
+          Map<AbstractAsyncClient, ReplicaStatus> answered, AbstractAsyncClient freshest) {
+    Map<String, Integer> votes = new HashMap<>();
+    for (Map.Entry<AbstractAsyncClient, ReplicaStatus> replica : answered.entrySet()) {
+      ReplicaStatus status = replica.getValue();
+      if (group >= status.getGroups()) {
+        continue; // The replica runs fewer groups, so its view of this one is unknown
+      }
+      if (status.isLeader(group)) {
+        return replica.getKey();
+      }
+      if (status.getLeaderId(group) != null) {
+        votes.merge(status.getLeaderId(group), 1, Integer::sum);
+      }
+    }
+    AbstractAsyncClient named = null;
+    int mostVotes = 0;
+    for (Map.Entry<String, Integer> vote : votes.entrySet()) {
+      if (vote.getValue() > mostVotes && byServerId.containsKey(vote.getKey())) {
+        named = byServerId.get(vote.getKey());
+        mostVotes = vote.getValue();
+      }
+    }
+    return named != null ? named : freshest;
+  }
+}
@@ -8,16 +8,25 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Predicate;
 
 /**
  * TCP client for communicating with a server application's key-value store. See corresponding
  * interface and abstract class.
+ * <p>
+ * With kvstore.client.pipeline=true, every request is tagged with an id, and a reader thread
+ * matches each response to its request by tag.  Several threads may then share one client, keeping
+ * many requests in flight on its connection, and the server may answer them in any order.
  */
 public class TCPClient extends AbstractClient {
+  private static final boolean PIPELINED = Boolean.getBoolean("kvstore.client.pipeline");
+
   private Socket connection = null;
   private BufferedReader in = null;
   private PrintWriter out = null;
+  private volatile TaggedRequests inFlight = new TaggedRequests(SERVER_TIMEOUT_MILLIS);
 
   public TCPClient(String host, String port) {
     super(host, port);
@@ -47,6 +56,16 @@ public class TCPClient extends AbstractClient {
     }
     in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
     out = new PrintWriter(connection.getOutputStream(), true);
+    if (PIPELINED) {
+      connection.setSoTimeout(0); // Each request times out on its own instead
+      BufferedReader responses = in;
+      TaggedRequests requests = new TaggedRequests(SERVER_TIMEOUT_MILLIS);
+      inFlight = requests;
+      Thread reader = new Thread(() -> readTaggedResponses(responses, requests),
+              "tcp-client-reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
     return true;
   }
 
@@ -71,9 +90,11 @@ public class TCPClient extends AbstractClient {
       printArgError();
       return;
     }
-    out.println("PUT " + key + " " + value);
     Predicate<String> validate = new ResponseValidator.ValidatePutResponse(key, value);
-    getResponseAndValidate(validate);
+    String response = exchange("PUT " + key + " " + value, validate);
+    if (response != null) {
+      recordToken(response.split(" ")[3]);
+    }
   }
 
   public String get(String key) {
@@ -81,9 +102,12 @@ public class TCPClient extends AbstractClient {
       printArgError();
       return null;
     }
-    out.println("GET " + key);
     Predicate<String> validate = new ResponseValidator.ValidateGetResponse(key);
-    String response = getResponseAndValidate(validate);
+    String response = exchange(getRequest(key), validate);
+    if (response != null && response.equals("STALE")) {
+      printStaleError();
+      return null;
+    }
     return response == null ? null : response.split(" ")[4];
   }
 
@@ -92,9 +116,58 @@ public class TCPClient extends AbstractClient {
       printArgError();
       return;
     }
-    out.println("DEL " + key);
     Predicate<String> validate = new ResponseValidator.ValidateDelResponse(key);
-    getResponseAndValidate(validate);
+    String response = exchange("DEL " + key, validate);
+    if (response != null) {
+      recordToken(response.split(" ")[2]);
+    }
+  }
+
+  // Sends a request and returns its valid response, or null if none arrived
+  private String exchange(String request, Predicate<String> isValid) {
+    if (PIPELINED) {
+      return exchangeTagged(request, isValid);
+    }
+    out.println(request);
+    return getResponseAndValidate(isValid);
+  }
+
+  private String exchangeTagged(String request, Predicate<String> isValid) {
+    PrintWriter writer = out;
+    try {
+      String response = inFlight.send(request, writer::println).get();
+      if (!isValid.test(response)) {
+        System.err.println(currentTime() + ">> Invalid response from server: " + response);
+        return null;
+      }
+      return response;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        System.out.println(currentTime() + ">> No response. Server timed out.");
+      } else {
+        System.err.println(currentTime() + ">> IOException while receiving server's response.");
+      }
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  // Runs on a connection's reader thread, completing each request's future when its tagged response
+  // arrives.  Requests still waiting when the connection closes fail.
+  private void readTaggedResponses(BufferedReader responses, TaggedRequests requests) {
+    try {
+      String line;
+      while ((line = responses.readLine()) != null) {
+        if (!requests.complete(line)) {
+          System.err.println(currentTime() + ">> Response matches no request: " + line);
+        }
+      }
+    } catch (IOException e) {
+      // The connection was closed
+    }
+    requests.failAll(new IOException("Connection closed"));
   }
 
   private String getResponseAndValidate(Predicate<String> isValid) {
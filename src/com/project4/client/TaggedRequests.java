@@ -0,0 +1,84 @@
+package com.project4.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the tagged requests in flight on one connection or socket.  Each request is sent with a
+ * fresh tag, "#[id]", and its future is completed with the rest of the response line carrying the
+ * same tag, so responses may arrive in any order.  A request with no response within the timeout
+ * fails with a TimeoutException.
+ */
+class TaggedRequests {
+  private static final ScheduledExecutorService timeouts =
+          Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread timer = new Thread(task, "client-timeouts");
+            timer.setDaemon(true);
+            return timer;
+          });
+
+  private AtomicInteger nextId = new AtomicInteger();
+  private Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>(); // By tag
+  private long timeoutMillis;
+
+  TaggedRequests(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Tags a request and hands the tagged line to the sender.
+   *
+   * @return completed with the untagged response
+   */
+  CompletableFuture<String> send(String request, LineSender sender) {
+    String tag = "#" + nextId.incrementAndGet();
+    CompletableFuture<String> response = new CompletableFuture<>();
+    inFlight.put(tag, response);
+    ScheduledFuture<?> timeout = timeouts.schedule(() -> response.completeExceptionally(
+            new TimeoutException("No response. Server timed out.")), timeoutMillis,
+            TimeUnit.MILLISECONDS);
+    response.whenComplete((line, e) -> {
+      inFlight.remove(tag);
+      timeout.cancel(false);
+    });
+    try {
+      sender.send(tag + " " + request);
+    } catch (IOException e) {
+      response.completeExceptionally(e);
+    }
+    return response;
+  }
+
+  /**
+   * Completes the request a tagged response line answers.
+   *
+   * @return false if the line matches no request in flight, for example one that timed out
+   */
+  boolean complete(String line) {
+    int space = line.indexOf(' ');
+    CompletableFuture<String> response = space < 0 ? null : inFlight.get(line.substring(0, space));
+    return response != null && response.complete(line.substring(space + 1));
+  }
+
+  // Fails every request still in flight, for example when the connection closes.
+  void failAll(IOException cause) {
+    for (CompletableFuture<String> response : inFlight.values()) {
+      response.completeExceptionally(cause);
+    }
+  }
+
+  /**
+   * Writes one tagged request line to the server.
+   */
+  interface LineSender {
+    void send(String line) throws IOException;
+  }
+}
@@ -14,7 +14,7 @@ import java.util.function.Predicate;
 public class UDPClient extends AbstractClient {
   private DatagramSocket connection = null;
   private static final int LOCAL_PORT = 6000;
-  private static final int BUFFER_SIZE = 128;
+  private static final int BUFFER_SIZE = 65507; // Largest UDP payload; tokens grow with shards
 
   public UDPClient(String host, String port) {
     super(host, port);
@@ -58,7 +58,10 @@ public class UDPClient extends AbstractClient {
       return;
     }
     Predicate<String> validate = new ResponseValidator.ValidatePutResponse(key, value);
-    getResponseAndValidate(validate);
+    String response = getResponseAndValidate(validate);
+    if (response != null) {
+      recordToken(response.split(" ")[3]);
+    }
   }
 
   public String get(String key) {
@@ -66,7 +69,7 @@ public class UDPClient extends AbstractClient {
       printArgError();
       return null;
     }
-    byte[] message = ("GET " + key).getBytes();
+    byte[] message = getRequest(key).getBytes();
     DatagramPacket out = new DatagramPacket(message, message.length, host, port);
     try {
       connection.send(out);
@@ -76,6 +79,10 @@ public class UDPClient extends AbstractClient {
     }
     Predicate<String> validate = new ResponseValidator.ValidateGetResponse(key);
     String response = getResponseAndValidate(validate);
+    if (response != null && response.equals("STALE")) {
+      printStaleError();
+      return null;
+    }
     return response == null ? null : response.split(" ")[4];
   }
 
@@ -93,7 +100,10 @@ public class UDPClient extends AbstractClient {
       return;
     }
     Predicate<String> validate = new ResponseValidator.ValidateDelResponse(key);
-    getResponseAndValidate(validate);
+    String response = getResponseAndValidate(validate);
+    if (response != null) {
+      recordToken(response.split(" ")[2]);
+    }
   }
 
   private String getResponseAndValidate(Predicate<String> isValid) {
@@ -117,7 +127,7 @@ public class UDPClient extends AbstractClient {
         System.out.println(currentTime() + ">> No response. Server timed out.");
         return null;
       }
-      resp = new String(serverResp.getData()).trim();
+      resp = new String(serverResp.getData(), 0, serverResp.getLength()).trim();
       validMessage = isValid.test(resp);
       if (!validMessage) {
         System.err.println(currentTime() + ">> Invalid response from server: " + resp);
@@ -1,14 +1,49 @@
 package com.project4.server;
 
 import com.project4.server.kvStore.KeyValueStore;
-import com.project4.server.kvStore.RMIKeyValueStore;
+import com.project4.server.kvStore.ShardedKeyValueStore;
 
 import java.net.MalformedURLException;
 import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Abstract class for sharing methods between different Server implementations.
+ * <p>
+ * PUT and DEL responses end with a session token naming the state id the operation was executed
+ * at: a plain state id, or one state id per Paxos group, separated by dots, when the store is
+ * sharded.  A write that is not executed within kvstore.request.timeoutMillis is answered "ERROR",
+ * and may still be executed later, so a client that retries it must allow for it being applied
+ * twice.  A client may merge the tokens it has seen, taking the highest state id at each position,
+ * and send the result with the most state ids it will let a read lag behind on later GETs:
+ * "GET [key] [sessionToken] [maxLag]", where a token of 0 requires nothing and a maxLag of -1
+ * allows any lag.  If this replica cannot catch up in time, it responds "STALE" so the client can try another
+ * server.  Any GET may be answered "STALE" while a replica replays past a snapshot it has loaded,
+ * or when a LEASE or QUORUM read cannot be confirmed in time.
+ * <p>
+ * A request may start with a tag, "#[id]", which is repeated at the start of its response, for
+ * example "#7 GET k" and "#7 GET KEY: k VAL: v".  Tags let a client keep many requests in flight
+ * on one connection and match each response to its request, so servers that can answer requests
+ * out of order do.  A client that needs one tagged request to see another's effects waits for the
+ * first response before sending the second.
+ * <p>
+ * "LEADER" asks which replica this server believes leads the cluster.  The response,
+ * "LEADER [leaderIds] [serverId] [stateId]", names the leader (or NONE), this server, and the
+ * highest state id this server has executed, so that a client can send writes to the leader and
+ * spread reads over replicas that are up to date.  When the store is sharded, each Paxos group
+ * elects its own leader, and leaderIds lists them in group order, separated by commas; a key's
+ * writes go to the leader of group Math.floorMod(key.hashCode(), groups).
+ * <p>
+ * "RECONFIG ADD [id] [host]" adds a server to the cluster, or moves a member to a new host, and
+ * "RECONFIG REMOVE [id]" removes one.  The change is decided through consensus like any write, and
+ * the response, "RECONFIG [ADD|REMOVE] [id] [stateId]", names the state id it was executed at.  A
+ * change that is not executed after a few attempts is answered "ERROR".  When the store is sharded,
+ * the change is made in each Paxos group in turn, and the log names any groups it was applied to
+ * before failing; repeating the request finishes it in the others.
  */
 public abstract class AbstractServer implements Server {
   protected static final int PORT_MIN = 1024;
@@ -16,7 +51,14 @@ public abstract class AbstractServer implements Server {
   protected static final int INSTRUCTION_INDEX = 0;
   protected static final int KEY_INDEX = 1;
   protected static final int VALUE_INDEX = 2;
+  protected static final int SESSION_TOKEN_INDEX = 2;
+  protected static final int MAX_LAG_INDEX = 3;
+  protected static final int RECONFIG_ACTION_INDEX = 1;
+  protected static final int RECONFIG_ID_INDEX = 2;
+  protected static final int RECONFIG_HOST_INDEX = 3;
+  protected static final int RECONFIG_ATTEMPTS = 3;
   protected static final int MAX_INPUT_LENGTH = 25;
+  protected static final String TAG_PREFIX = "#";
 
   protected int port;
   protected String servID;
@@ -54,7 +96,7 @@ public abstract class AbstractServer implements Server {
   }
 
   private void startKvStore() throws RemoteException, IllegalArgumentException {
-    kvStore = new RMIKeyValueStore();
+    kvStore = ShardedKeyValueStore.create();
     try {
       kvStore.run(servID);
     } catch (MalformedURLException e) {
@@ -66,10 +108,13 @@ public abstract class AbstractServer implements Server {
     running = false;
   }
 
-  // Validates the size of GET/PUT/DELETE argument tokens pursuant to protocol
+  // Validates the size of GET/PUT/DELETE argument tokens pursuant to protocol.  A GET's session
+  // token is exempt, since it holds a state id for every Paxos group.
   protected boolean validateLength(String[] tokens) {
-    for (String token : tokens) {
-      if (token.length() > MAX_INPUT_LENGTH) {
+    boolean sessionGet = tokens.length == 4 && tokens[INSTRUCTION_INDEX].equals("GET");
+    for (int i = 0; i < tokens.length; i++) {
+      String token = tokens[i];
+      if (token.length() > MAX_INPUT_LENGTH && !(sessionGet && i == SESSION_TOKEN_INDEX)) {
         System.out.println(currentTime() + ">> Token '" + token +
                 "' exceeds max length. Dropping request.");
         return false;
@@ -78,6 +123,24 @@ public abstract class AbstractServer implements Server {
     return true;
   }
 
+  // Returns the request's tag, if its first token is one, or null
+  protected static String tagOf(String[] tokens) {
+    if (tokens.length > 1 && tokens[0].startsWith(TAG_PREFIX)) {
+      return tokens[0];
+    }
+    return null;
+  }
+
+  // Returns the request's tokens without its tag
+  protected static String[] withoutTag(String[] tokens) {
+    return tagOf(tokens) == null ? tokens : Arrays.copyOfRange(tokens, 1, tokens.length);
+  }
+
+  // Prefixes a response with the tag of the request it answers, if that request had one
+  protected static String withTag(String tag, String returnMessage) {
+    return tag == null ? returnMessage : tag + " " + returnMessage;
+  }
+
   // Based on provided client request tokens, calls the appropriate handling method
   protected RequestResult handleIndividualRequest(String[] request) throws RemoteException {
     switch (request[INSTRUCTION_INDEX]) {
@@ -87,29 +150,94 @@ public abstract class AbstractServer implements Server {
         return handleGetRequest(request);
       case "DEL":
         return handleDeleteRequest(request);
+      case "LEADER":
+        return handleLeaderRequest(request);
+      case "RECONFIG":
+        return handleReconfigRequest(request);
       default:
         return null;
     }
   }
 
+  // Like handleIndividualRequest, but does not block: PUT and DEL complete when Paxos executes
+  // them, and GET, which may wait for this replica to catch up, runs on the given workers.  The
+  // result is null for an invalid request.
+  protected CompletableFuture<RequestResult> handleRequestAsync(String[] request,
+                                                                Executor getWorkers) {
+    switch (request[INSTRUCTION_INDEX]) {
+      case "PUT":
+        if (request.length != 3) {
+          return CompletableFuture.completedFuture(null);
+        }
+        return kvStore.putAsync(request[KEY_INDEX], request[VALUE_INDEX])
+                .thenApply(stateId -> stateId < 0 ? notExecutedResult(request)
+                        : putResult(request, stateId));
+      case "GET":
+        return CompletableFuture.supplyAsync(() -> {
+          try {
+            return handleGetRequest(request);
+          } catch (RemoteException e) {
+            return new RequestResult("Remote Exception thrown: " + e.getMessage(), "ERROR");
+          }
+        }, getWorkers);
+      case "DEL":
+        if (request.length != 2) {
+          return CompletableFuture.completedFuture(null);
+        }
+        return kvStore.deleteAsync(request[KEY_INDEX])
+                .thenApply(stateId -> stateId < 0 ? notExecutedResult(request)
+                        : deleteResult(request, stateId));
+      case "LEADER":
+        return CompletableFuture.completedFuture(handleLeaderRequest(request));
+      case "RECONFIG":
+        return CompletableFuture.supplyAsync(() -> handleReconfigRequest(request), getWorkers);
+      default:
+        return CompletableFuture.completedFuture(null);
+    }
+  }
+
   private RequestResult handlePutRequest(String[] request) throws RemoteException {
     if (request.length != 3) {
       return null;
     }
-    boolean success = false;
-    while (!success) {
-      success = kvStore.put(request[KEY_INDEX], request[VALUE_INDEX]);
+    int stateId = kvStore.put(request[KEY_INDEX], request[VALUE_INDEX]);
+    if (stateId < 0) {
+      return notExecutedResult(request);
     }
-    String result = "Put key=" + request[KEY_INDEX] + " value=" + request[VALUE_INDEX];
-    String returnMessage = "PUT " + request[KEY_INDEX] + " " + request[VALUE_INDEX];
+    return putResult(request, stateId);
+  }
+
+  private RequestResult putResult(String[] request, int stateId) {
+    String result = "Put key=" + request[KEY_INDEX] + " value=" + request[VALUE_INDEX]
+            + " at state id=" + stateId;
+    String returnMessage = "PUT " + request[KEY_INDEX] + " " + request[VALUE_INDEX] + " "
+            + kvStore.sessionToken(request[KEY_INDEX], stateId);
     return new RequestResult(result, returnMessage);
   }
 
   private RequestResult handleGetRequest(String[] request) throws RemoteException {
-    if (request.length != 2) {
+    if (request.length != 2 && request.length != 4) {
+      return null;
+    }
+    int maxLag = -1;
+    if (request.length == 4) {
+      try {
+        maxLag = Integer.parseInt(request[MAX_LAG_INDEX]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    String value;
+    try {
+      value = request.length == 4
+              ? kvStore.get(request[KEY_INDEX], request[SESSION_TOKEN_INDEX], maxLag)
+              : kvStore.get(request[KEY_INDEX]);
+    } catch (IllegalArgumentException e) {
       return null;
+    } catch (IllegalStateException e) {
+      return new RequestResult("Too far behind for key=" + request[KEY_INDEX] + ": "
+              + e.getMessage(), "STALE");
     }
-    String value = kvStore.get(request[KEY_INDEX]);
     if (value == null) {
       value = "[NULL]";
     }
@@ -122,17 +250,87 @@ public abstract class AbstractServer implements Server {
     if (request.length != 2) {
       return null;
     }
-    boolean success = false;
-    while (!success) {
-      success = kvStore.delete(request[KEY_INDEX]);
+    int stateId = kvStore.delete(request[KEY_INDEX]);
+    if (stateId < 0) {
+      return notExecutedResult(request);
     }
-    String result = "Deleted key=" + request[KEY_INDEX];
-    String returnMessage = "DEL " + request[KEY_INDEX];
+    return deleteResult(request, stateId);
+  }
+
+  // The write timed out or was interrupted; it may still be executed, so the client must not assume
+  // either outcome
+  private RequestResult notExecutedResult(String[] request) {
+    return new RequestResult(request[INSTRUCTION_INDEX] + " of key=" + request[KEY_INDEX]
+            + " was not executed in time", "ERROR");
+  }
+
+  private RequestResult deleteResult(String[] request, int stateId) {
+    String result = "Deleted key=" + request[KEY_INDEX] + " at state id=" + stateId;
+    String returnMessage = "DEL " + request[KEY_INDEX] + " "
+            + kvStore.sessionToken(request[KEY_INDEX], stateId);
+    return new RequestResult(result, returnMessage);
+  }
+
+  private RequestResult handleLeaderRequest(String[] request) {
+    if (request.length != 1) {
+      return null;
+    }
+    String leaderIds = formatLeaderIds(kvStore.getLeaderIds());
+    int stateId = kvStore.getStateId() - 1;
+    String result = "Reported leader=" + leaderIds + " at state id=" + stateId;
+    String returnMessage = "LEADER " + leaderIds + " " + servID + " " + stateId;
     return new RequestResult(result, returnMessage);
   }
 
+  // Joins each Paxos group's leader with commas, naming a group with no known leader NONE
+  static String formatLeaderIds(List<String> leaderIds) {
+    StringBuilder formatted = new StringBuilder();
+    for (String leaderId : leaderIds) {
+      if (formatted.length() > 0) {
+        formatted.append(',');
+      }
+      formatted.append(leaderId == null ? "NONE" : leaderId);
+    }
+    return formatted.toString();
+  }
+
+  private RequestResult handleReconfigRequest(String[] request) {
+    boolean add = request.length == 4 && request[RECONFIG_ACTION_INDEX].equals("ADD");
+    boolean remove = request.length == 3 && request[RECONFIG_ACTION_INDEX].equals("REMOVE");
+    if (!add && !remove) {
+      return null;
+    }
+    String id = request[RECONFIG_ID_INDEX];
+    int stateId = -1;
+    String partial = null;
+    try {
+      for (int attempt = 0; attempt < RECONFIG_ATTEMPTS && stateId < 0
+              && !Thread.currentThread().isInterrupted(); attempt++) {
+        try {
+          stateId = add ? kvStore.addServer(id, request[RECONFIG_HOST_INDEX])
+                  : kvStore.removeServer(id);
+        } catch (IllegalStateException e) {
+          partial = e.getMessage(); // The next attempt only changes the remaining groups
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      return new RequestResult("Could not reconfigure: " + e.getMessage(), "ERROR");
+    }
+    if (stateId < 0) {
+      return new RequestResult("Could not reconfigure: " + (partial != null ? partial
+              : "server " + id + " was not " + (add ? "added" : "removed") + " in time"), "ERROR");
+    }
+    String result = (add ? "Added server " + id + " host=" + request[RECONFIG_HOST_INDEX]
+            : "Removed server " + id) + " at state id=" + stateId;
+    String returnMessage = "RECONFIG " + request[RECONFIG_ACTION_INDEX] + " " + id + " " + stateId;
+    return new RequestResult(result, returnMessage);
+  }
+
+  // SimpleDateFormat is not thread-safe, and some servers log from several threads
   protected String currentTime() {
-    return dateFormatter.format(System.currentTimeMillis());
+    synchronized (dateFormatter) {
+      return dateFormatter.format(System.currentTimeMillis());
+    }
   }
 
   /**
@@ -1,7 +1,7 @@
 package com.project4.server;
 
 import com.project4.server.kvStore.KeyValueStore;
-import com.project4.server.kvStore.RMIKeyValueStore;
+import com.project4.server.kvStore.ShardedKeyValueStore;
 
 import java.net.MalformedURLException;
 import java.rmi.Naming;
@@ -13,10 +13,12 @@ import java.text.SimpleDateFormat;
  * Remote object representing a Key Value store interface, to be accessed by a client via RMI.
  */
 public class RMIServer extends UnicastRemoteObject implements RPCServer {
+  private static final long serialVersionUID = 1L;
   private static final String URL_NAME = "kvinterface";
   private static final int DEFAULT_RMI_PORT = 1099;
   private static final int PORT_MIN = 1024;
   protected static final int PORT_MAX = 65535;
+  private static final int RECONFIG_ATTEMPTS = 3;
 
 
   private String servID = null;
@@ -59,7 +61,7 @@ public class RMIServer extends UnicastRemoteObject implements RPCServer {
 
 
   private void startKvStore() throws RemoteException, IllegalArgumentException {
-    kvStore = new RMIKeyValueStore();
+    kvStore = ShardedKeyValueStore.create();
     try {
       kvStore.run(servID);
     } catch (MalformedURLException e) {
@@ -68,12 +70,14 @@ public class RMIServer extends UnicastRemoteObject implements RPCServer {
   }
 
   @Override
-  public void put(String key, String value) throws RemoteException {
-    boolean success = false;
-    while (!success) {
-      success = kvStore.put(key, value);
+  public String put(String key, String value) throws RemoteException {
+    int stateId = kvStore.put(key, value);
+    if (stateId < 0) {
+      throw new RemoteException("Put of key=" + key + " was not executed in time");
     }
-    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Put key=" + key + " value=" + value);
+    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Put key=" + key + " value=" + value
+            + " at state id=" + stateId);
+    return kvStore.sessionToken(key, stateId);
   }
 
   @Override
@@ -84,12 +88,70 @@ public class RMIServer extends UnicastRemoteObject implements RPCServer {
   }
 
   @Override
-  public void delete(String key) throws RemoteException {
-    boolean success = false;
-    while (!success) {
-      success = kvStore.delete(key);
+  public String get(String key, String sessionToken, int maxLag) throws RemoteException {
+    String value = kvStore.get(key, sessionToken, maxLag);
+    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Get key=" + key + " value=" + value
+            + " after session token=" + sessionToken);
+    return value;
+  }
+
+  @Override
+  public String delete(String key) throws RemoteException {
+    int stateId = kvStore.delete(key);
+    if (stateId < 0) {
+      throw new RemoteException("Delete of key=" + key + " was not executed in time");
+    }
+    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Delete key=" + key
+            + " at state id=" + stateId);
+    return kvStore.sessionToken(key, stateId);
+  }
+
+  @Override
+  public int addServer(String id, String host) throws RemoteException {
+    int stateId = -1;
+    String partial = null;
+    for (int attempt = 0; attempt < RECONFIG_ATTEMPTS && stateId < 0
+            && !Thread.currentThread().isInterrupted(); attempt++) {
+      try {
+        stateId = kvStore.addServer(id, host);
+      } catch (IllegalStateException e) {
+        partial = e.getMessage(); // The next attempt only changes the remaining groups
+      }
+    }
+    if (stateId < 0) {
+      throw new RemoteException(partial != null ? partial
+              : "Server " + id + " was not added in time");
     }
-    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Delete key=" + key);
+    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Added server " + id + " host="
+            + host + " at state id=" + stateId);
+    return stateId;
+  }
+
+  @Override
+  public int removeServer(String id) throws RemoteException {
+    int stateId = -1;
+    String partial = null;
+    for (int attempt = 0; attempt < RECONFIG_ATTEMPTS && stateId < 0
+            && !Thread.currentThread().isInterrupted(); attempt++) {
+      try {
+        stateId = kvStore.removeServer(id);
+      } catch (IllegalStateException e) {
+        partial = e.getMessage(); // The next attempt only changes the remaining groups
+      }
+    }
+    if (stateId < 0) {
+      throw new RemoteException(partial != null ? partial
+              : "Server " + id + " was not removed in time");
+    }
+    System.out.println(currentTime() + ">> port=" + DEFAULT_RMI_PORT + ": Removed server " + id
+            + " at state id=" + stateId);
+    return stateId;
+  }
+
+  @Override
+  public String leader() throws RemoteException {
+    return "LEADER " + AbstractServer.formatLeaderIds(kvStore.getLeaderIds()) + " " + servID + " "
+            + (kvStore.getStateId() - 1);
   }
 
   private String currentTime() {
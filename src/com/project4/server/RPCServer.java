@@ -18,21 +18,62 @@ public interface RPCServer extends Remote {
    *
    * @param key   the key
    * @param value the value
+   * @return a session token naming the state id the put was executed at
    */
-  void put(String key, String value) throws RemoteException;
+  String put(String key, String value) throws RemoteException;
 
   /**
    * Requests a get operation on the key-value store server.
    *
    * @param key the key
    * @return the value associated with this key, or '[NULL]' if none
+   * @throws IllegalStateException if the server has not yet replayed past a snapshot it loaded
    */
   String get(String key) throws RemoteException;
 
+  /**
+   * Requests a get operation that reflects at least the state ids in the given session token, and
+   * trails the newest state id the server has heard of by at most the given lag.
+   *
+   * @param key          the key
+   * @param sessionToken the merged tokens of earlier writes, or "0" for any state
+   * @param maxLag       most state ids the read may lag behind, or -1 for any
+   * @return the value associated with this key, or '[NULL]' if none
+   * @throws IllegalArgumentException if the session token is malformed
+   * @throws IllegalStateException    if the server could not catch up in time
+   */
+  String get(String key, String sessionToken, int maxLag) throws RemoteException;
+
   /**
    * Requests a get operation on the key-value store server.
    *
    * @param key the key
+   * @return a session token naming the state id the delete was executed at
+   */
+  String delete(String key) throws RemoteException;
+
+  /**
+   * Adds a server to the cluster, or moves a member to a new host.
+   *
+   * @param id   the new server's id
+   * @param host the new server's host
+   * @return the state id the change was executed at
+   */
+  int addServer(String id, String host) throws RemoteException;
+
+  /**
+   * Removes a server from the cluster.
+   *
+   * @param id the member's id
+   * @return the state id the change was executed at
+   * @throws IllegalArgumentException if the server is the only member
+   */
+  int removeServer(String id) throws RemoteException;
+
+  /**
+   * Asks which replica this server believes leads the cluster.
+   *
+   * @return "LEADER [leaderIds] [serverId] [stateId]", as for the TCP and UDP servers
    */
-  void delete(String key) throws RemoteException;
+  String leader() throws RemoteException;
 }
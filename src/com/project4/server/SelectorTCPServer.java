@@ -0,0 +1,309 @@
+package com.project4.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TCP server that serves many clients at once by multiplexing their connections over a few
+ * selector threads, where TCPServer serves one client at a time.  The thread running the server
+ * accepts connections and hands each to one of kvstore.tcp.selectors event loops, which read
+ * requests line by line.
+ * <p>
+ * Untagged requests on one connection are served one after another, as TCPServer serves them, so a
+ * client always reads its own writes.  Tagged requests (see AbstractServer) start as soon as they
+ * are read, and each is answered as soon as it completes, so a fast GET is not held up behind a
+ * slow PUT.  Waiting ties up no thread: PUT and DEL requests are handed to Paxos without blocking,
+ * and their responses are written once the cluster executes them, so slow consensus never holds up
+ * reading from other sockets.  GET requests may wait for this replica to catch up, so they run on a
+ * small worker pool.  A connection stops being read while too many of its requests are waiting for
+ * a response.
+ */
+public class SelectorTCPServer extends AbstractServer {
+  private static final int SELECTORS = Integer.getInteger("kvstore.tcp.selectors",
+          Runtime.getRuntime().availableProcessors());
+  private static final int GET_WORKERS = Integer.getInteger("kvstore.tcp.getWorkers", 16);
+  private static final int MAX_PENDING_RESPONSES = 1024; // Per connection
+  private static final int MAX_LINE_BYTES = 4096;
+  private static final int READ_BUFFER_BYTES = 8192;
+
+  private ExecutorService getWorkers = Executors.newFixedThreadPool(GET_WORKERS, task -> {
+    Thread worker = new Thread(task, "tcp-get");
+    worker.setDaemon(true);
+    return worker;
+  });
+
+  public SelectorTCPServer(String port, String servID)
+          throws IllegalArgumentException, RemoteException {
+    super(port, servID);
+  }
+
+  public SelectorTCPServer(int port, String servID)
+          throws IllegalArgumentException, RemoteException {
+    super(port, servID);
+  }
+
+  @Override
+  public void run() {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(port), 1024);
+      EventLoop[] loops = new EventLoop[Math.max(1, SELECTORS)];
+      for (int i = 0; i < loops.length; i++) {
+        loops[i] = new EventLoop(i);
+        loops[i].start();
+      }
+      System.out.println(currentTime() + ">> Waiting for client connections on " + loops.length
+              + " selector threads");
+      int next = 0;
+      while (running) {
+        SocketChannel channel = server.accept();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        loops[next].add(channel);
+        next = (next + 1) % loops.length;
+      }
+    } catch (IOException e) {
+      System.err.println(currentTime() + ">> I/O Exception while binding to port " + port);
+    }
+    System.out.println(currentTime() + ">> Exiting.");
+    System.exit(0);
+  }
+
+  /**
+   * One selector thread and the connections assigned to it.  Only this thread touches its
+   * connections; other threads hand it work through the task queue.
+   */
+  private class EventLoop extends Thread {
+    private Selector selector;
+    private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+    private EventLoop(int number) throws IOException {
+      super("tcp-selector-" + number);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    private void add(SocketChannel channel) {
+      execute(() -> {
+        try {
+          Connection connection = new Connection(channel);
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+          System.out.println(currentTime() + ">> client=" + connection.client + " port=" + port
+                  + ": Accepted connection");
+        } catch (IOException e) {
+          closeQuietly(channel);
+        }
+      });
+    }
+
+    private void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          selector.select();
+        } catch (IOException e) {
+          System.err.println(currentTime() + ">> Selector failed: " + e.getMessage());
+          return;
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey key = selected.next();
+          selected.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isWritable()) {
+              write(connection);
+            }
+            if (key.isValid() && key.isReadable()) {
+              read(connection);
+            }
+          } catch (IOException e) {
+            System.err.println(currentTime() + ">> IOException while servicing client. "
+                    + "Dropping connection.");
+            close(connection);
+          }
+        }
+      }
+    }
+
+    private void read(Connection connection) throws IOException {
+      readBuffer.clear();
+      int read = connection.channel.read(readBuffer);
+      if (read < 0) {
+        System.out.println(currentTime() + ">> client=" + connection.client + " port=" + port
+                + ": Client closed the session.");
+        close(connection);
+        return;
+      }
+      readBuffer.flip();
+      while (readBuffer.hasRemaining()) {
+        byte b = readBuffer.get();
+        if (b != '\n') {
+          connection.line.write(b);
+          if (connection.line.size() > MAX_LINE_BYTES) {
+            throw new IOException("Request line too long");
+          }
+          continue;
+        }
+        String received = new String(connection.line.toByteArray(), StandardCharsets.UTF_8);
+        connection.line.reset();
+        if (received.endsWith("\r")) {
+          received = received.substring(0, received.length() - 1);
+        }
+        handleLine(connection, received);
+      }
+      if (connection.pending() >= MAX_PENDING_RESPONSES) {
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+      }
+    }
+
+    private void handleLine(Connection connection, String received) {
+      System.out.println(currentTime() + ">> client=" + connection.client + " port=" + port
+              + ": Received '" + received + "'");
+      String[] tokens = received.split(" ");
+      String tag = tagOf(tokens);
+      String[] request = withoutTag(tokens);
+      CompletableFuture<RequestResult> response;
+      if (!validateLength(request)) {
+        response = CompletableFuture.completedFuture(new RequestResult("Invalid length", "ERROR"));
+      } else if (tag != null || connection.responses.isEmpty()) {
+        response = handleRequestAsync(request, getWorkers);
+      } else {
+        // Start once the previous untagged request on this connection is done, back on this thread
+        response = connection.responses.peekLast().handle((result, e) -> request).thenComposeAsync(
+                previous -> handleRequestAsync(request, getWorkers), this::execute);
+      }
+      if (tag != null) {
+        // Tagged requests are answered as soon as they complete, in any order
+        connection.taggedInFlight++;
+        response.whenComplete((result, e) -> execute(() -> {
+          connection.taggedInFlight--;
+          queueResponse(connection, withTag(tag, returnMessage(connection, response)));
+          flushWrites(connection);
+        }));
+        return;
+      }
+      connection.responses.add(response);
+      response.whenComplete((result, e) -> execute(() -> flushResponses(connection)));
+    }
+
+    // Queues each untagged response that is ready, stopping at the first request still in progress.
+    private void flushResponses(Connection connection) {
+      while (!connection.responses.isEmpty() && connection.responses.peek().isDone()) {
+        queueResponse(connection, returnMessage(connection, connection.responses.poll()));
+      }
+      flushWrites(connection);
+    }
+
+    private String returnMessage(Connection connection, CompletableFuture<RequestResult> response) {
+      try {
+        RequestResult result = response.join();
+        if (result == null) {
+          System.err.println(currentTime() + ">> Invalid instruction. Dropping request.");
+          return "ERROR";
+        }
+        System.out.println(currentTime() + ">> client=" + connection.client + " port=" + port
+                + ": " + result.result);
+        return result.returnMessage;
+      } catch (RuntimeException e) {
+        System.err.println(currentTime() + ">> Request failed: " + e.getMessage());
+        return "ERROR";
+      }
+    }
+
+    private void queueResponse(Connection connection, String returnMessage) {
+      byte[] line = (returnMessage + "\n").getBytes(StandardCharsets.UTF_8);
+      connection.writes.add(ByteBuffer.wrap(line));
+    }
+
+    // Writes queued responses, and resumes reading once few enough requests are waiting.
+    private void flushWrites(Connection connection) {
+      if (!connection.channel.isOpen()) {
+        return;
+      }
+      try {
+        write(connection);
+      } catch (IOException e) {
+        close(connection);
+        return;
+      }
+      if (connection.pending() < MAX_PENDING_RESPONSES && connection.key.isValid()) {
+        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+      }
+    }
+
+    private void write(Connection connection) throws IOException {
+      while (!connection.writes.isEmpty()) {
+        ByteBuffer next = connection.writes.peek();
+        connection.channel.write(next);
+        if (next.hasRemaining()) {
+          connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+        connection.writes.poll();
+      }
+      connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection connection) {
+      if (connection.key != null) {
+        connection.key.cancel();
+      }
+      closeQuietly(connection.channel);
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // Already closing
+    }
+  }
+
+  /**
+   * One client connection, with its partly read request line and the responses it is owed.
+   */
+  private static class Connection {
+    private SocketChannel channel;
+    private SelectionKey key;
+    private String client;
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private ArrayDeque<CompletableFuture<RequestResult>> responses = new ArrayDeque<>(); // Untagged
+    private int taggedInFlight = 0;
+    private ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+
+    private Connection(SocketChannel channel) {
+      this.channel = channel;
+      this.client = String.valueOf(channel.socket().getInetAddress());
+    }
+
+    // Returns the number of requests still waiting for a response.
+    private int pending() {
+      return responses.size() + taggedInFlight;
+    }
+  }
+}
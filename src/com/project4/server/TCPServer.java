@@ -4,14 +4,28 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * TCP server acting as a key-value store. See corresponding interface and abstract class.
+ * <p>
+ * By default, one client is served at a time.  With kvstore.tcp.server=THREAD, each accepted
+ * connection is served on its own thread instead.  Those are virtual threads when the JVM has
+ * them (Java 21 or later), so a client blocked on consensus costs little more than its socket.
+ * Otherwise, or with kvstore.tcp.threads=PLATFORM, connections are served by a pool of
+ * kvstore.tcp.poolSize platform threads.
  */
 public class TCPServer extends AbstractServer {
+  private static final boolean THREAD_PER_CONNECTION =
+          "THREAD".equalsIgnoreCase(System.getProperty("kvstore.tcp.server"));
+  private static final String CONNECTION_THREADS =
+          System.getProperty("kvstore.tcp.threads", "VIRTUAL");
+  private static final int POOL_SIZE = Integer.getInteger("kvstore.tcp.poolSize", 200);
 
   public TCPServer(String port, String servID) throws IllegalArgumentException, RemoteException {
     super(port, servID);
@@ -24,10 +38,16 @@ public class TCPServer extends AbstractServer {
 
   @Override
   public void run() {
-    try (ServerSocket server = new ServerSocket(port)) {
+    ExecutorService connectionThreads = THREAD_PER_CONNECTION ? newConnectionThreads() : null;
+    try (ServerSocket server = new ServerSocket(port, 1024)) {
       while (running) {
-        System.out.println(currentTime() + ">> Waiting for client connection");
-        serviceClientRequests(server);
+        if (connectionThreads == null) {
+          System.out.println(currentTime() + ">> Waiting for client connection");
+          serviceClientRequests(server.accept());
+        } else {
+          Socket connection = server.accept();
+          connectionThreads.execute(() -> serviceClientRequests(connection));
+        }
       }
     } catch (IOException e) {
       System.err.println(currentTime() + ">> I/O Exception while binding to port " + port);
@@ -36,9 +56,9 @@ public class TCPServer extends AbstractServer {
     System.exit(0);
   }
 
-  private void serviceClientRequests(ServerSocket server) {
+  private void serviceClientRequests(Socket accepted) {
     try (
-            Socket connection = server.accept();
+            Socket connection = accepted;
             BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
             PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
     ) {
@@ -48,10 +68,12 @@ public class TCPServer extends AbstractServer {
       while ((received = in.readLine()) != null) {
         System.out.println(currentTime() + ">> client=" + connection.getInetAddress() +
                 " port=" + port + ": Received '" + received + "'");
-        String[] tokens = received.split(" ");
+        String[] tagged = received.split(" ");
+        String tag = tagOf(tagged);
+        String[] tokens = withoutTag(tagged);
         boolean validLength = validateLength(tokens);
         if (!validLength) {
-          out.println("ERROR");
+          out.println(withTag(tag, "ERROR"));
           continue;
         }
         RequestResult result = null;
@@ -64,10 +86,10 @@ public class TCPServer extends AbstractServer {
         if (result != null) {
           System.out.println(currentTime() + ">> client=" +
                   connection.getInetAddress() + " port=" + port + ": " + result.result);
-          out.println(result.returnMessage);
+          out.println(withTag(tag, result.returnMessage));
         } else {
           System.err.println(currentTime() + ">> Invalid instruction. Dropping request.");
-          out.println("ERROR");
+          out.println(withTag(tag, "ERROR"));
         }
 
       }
@@ -78,4 +100,23 @@ public class TCPServer extends AbstractServer {
               currentTime() + ">> IOException while servicing client. Dropping connection.");
     }
   }
+
+  // Virtual threads are looked up reflectively, so that the server still runs on older JVMs.
+  private static ExecutorService newConnectionThreads() {
+    if (!CONNECTION_THREADS.equalsIgnoreCase("PLATFORM")) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        System.out.println("Serving each client connection on a virtual thread");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads need Java 21 or later. Using platform threads.");
+      }
+    }
+    System.out.println("Serving client connections on " + POOL_SIZE + " platform threads");
+    return Executors.newFixedThreadPool(POOL_SIZE, task -> {
+      Thread worker = new Thread(task, "tcp-connection");
+      worker.setDaemon(true);
+      return worker;
+    });
+  }
 }
@@ -1,17 +1,40 @@
 package com.project4.server;
 
+import com.project4.server.kvStore.ShardedKeyValueStore;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.rmi.RemoteException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * UDP server acting as a key-value store. See corresponding interface and abstract class.
+ * <p>
+ * One thread receives packets, and a pool of kvstore.udp.workers threads handles them, so a
+ * request waiting on consensus does not stop other clients' packets being read.  Packets are
+ * received into a fixed pool of kvstore.udp.buffers reusable buffers, each returned to the pool as
+ * soon as its request has been parsed.  If every buffer is taken, the receiver waits, and further
+ * packets queue in the socket's receive buffer, which is enlarged to absorb bursts.
+ * <p>
+ * Buffers are sized for the longest valid request, a tagged GET carrying a session token with a
+ * state id for every Paxos group.  A packet that fills its buffer may have been truncated, so it is
+ * answered "ERROR" rather than parsed.
  */
 public class UDPServer extends AbstractServer {
-  private static final int BUFFER_SIZE = 128;
+  private static final int BUFFER_SIZE = 128 + ShardedKeyValueStore.maxSessionTokenLength();
+  private static final int WORKERS = Integer.getInteger("kvstore.udp.workers", 16);
+  private static final int BUFFERS = Integer.getInteger("kvstore.udp.buffers", 64);
+
+  private static final int SOCKET_RECEIVE_BUFFER_BYTES = 1024 * 1024;
+
+  private BlockingQueue<DatagramPacket> packetPool =
+          new ArrayBlockingQueue<>(Math.max(1, BUFFERS));
 
   public UDPServer(String port, String servID) throws IllegalArgumentException, RemoteException {
     super(port, servID);
@@ -23,27 +46,60 @@ public class UDPServer extends AbstractServer {
 
   @Override
   public void run() {
+    for (int i = 0; i < Math.max(1, BUFFERS); i++) {
+      packetPool.add(new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE));
+    }
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, WORKERS), task -> {
+      Thread worker = new Thread(task, "udp-worker");
+      worker.setDaemon(true);
+      return worker;
+    });
     try (DatagramSocket server = new DatagramSocket(port)) {
+      server.setReceiveBufferSize(SOCKET_RECEIVE_BUFFER_BYTES);
+      System.out.println(currentTime() + ">> Waiting for client packets");
       while (running) {
-        System.out.println(currentTime() + ">> Waiting for client packets");
-        byte[] buf = new byte[BUFFER_SIZE];
-        DatagramPacket clientInput = new DatagramPacket(buf, buf.length);
+        DatagramPacket clientInput = packetPool.take();
+        clientInput.setLength(BUFFER_SIZE);
         server.receive(clientInput);
-        DatagramPacket response = serviceClientRequest(clientInput);
-        server.send(response);
+        workers.execute(() -> {
+          DatagramPacket response = serviceClientRequest(clientInput);
+          try {
+            server.send(response);
+          } catch (IOException e) {
+            System.err.println(currentTime() + ">> IOException sending response to "
+                    + response.getAddress() + ":" + response.getPort());
+          }
+        });
       }
     } catch (SocketException e) {
       System.err.println(currentTime() + ">> Socket Exception while binding to port " + port);
     } catch (IOException e) {
       System.err.println(currentTime() + ">> IOException receiving packet on " + port);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
     System.out.println(currentTime() + "Exiting.");
   }
 
+  // Handles a received packet, and returns it to the pool once its contents have been read.
   private DatagramPacket serviceClientRequest(DatagramPacket request) {
-    String[] tokens = parseRequest(request);
+    InetAddress addr = request.getAddress();
+    int port = request.getPort();
+    boolean truncated = request.getLength() >= BUFFER_SIZE;
+    String[] tagged;
+    try {
+      tagged = parseRequest(request);
+    } finally {
+      packetPool.add(request);
+    }
+    String tag = tagOf(tagged);
+    String[] tokens = withoutTag(tagged);
     RequestResult result;
-    if (tokens == null) {
+    if (truncated) {
+      System.err.println(currentTime() + ">> Request fills a " + BUFFER_SIZE
+              + "-byte buffer and may be truncated.");
+      result = null;
+    } else if (!validateLength(tokens)) {
       result = null;
     } else {
       try {
@@ -53,31 +109,24 @@ public class UDPServer extends AbstractServer {
                 "Remote Exception thrown: " + e.getMessage(), "ERROR");
       }
     }
-    InetAddress addr = request.getAddress();
-    int port = request.getPort();
     byte[] message;
     if (result != null) {
       System.out.println(currentTime() + ">> client=" + addr + " port=" + port +
               ": " + result.result);
-      message = result.returnMessage.getBytes();
+      message = withTag(tag, result.returnMessage).getBytes();
     } else {
       System.err.println(currentTime() + ">> Invalid instruction. Dropping request.");
-      message = "ERROR".getBytes();
+      message = withTag(tag, "ERROR").getBytes();
     }
     return new DatagramPacket(message, message.length, addr, port);
   }
 
   private String[] parseRequest(DatagramPacket request) {
-    String received = new String(request.getData()).trim();
+    String received = new String(request.getData(), 0, request.getLength()).trim();
     System.out.println(currentTime() + ">> client=" + request.getAddress() +
             " port=" + request.getPort() + ": Received '" + received + "'");
 
-    String[] tokens = received.split(" ");
-    boolean validLength = validateLength(tokens);
-    if (!validLength) {
-      return null;
-    }
-    return tokens;
+    return received.split(" ");
   }
 
 }
@@ -0,0 +1,173 @@
+package com.project4.server.kvStore;
+
+import com.project4.server.kvStore.paxos.Value;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Applies executed values to the store on a set of worker threads, so that the thread executing
+ * consensus reports only has to hand each value off.  Commands are partitioned over the workers by
+ * the hash of their key, and every worker applies its commands in the order they were submitted,
+ * so the commands on any one key are applied in state id order.
+ * <p>
+ * Commands on different keys may be applied out of order, so the stage publishes a watermark: the
+ * highest state id whose commands, and every earlier state id's commands, have all been applied.
+ * Readers wait for the watermark to reach the last submitted state id before reading the store.
+ */
+class ApplyStage {
+  private List<BlockingQueue<Task>> partitions;
+  private Consumer<Value> applier;
+  private Deque<Pending> pending = new ArrayDeque<>(); // Submitted state ids not yet applied
+  private volatile int submittedStateId;
+  private volatile int appliedStateId;
+
+  /**
+   * @param workers number of worker threads
+   * @param applier applies one PUT or DELETE command to the store
+   */
+  ApplyStage(int workers, Consumer<Value> applier) {
+    this.partitions = new ArrayList<>();
+    this.applier = applier;
+    for (int i = 0; i < Math.max(1, workers); i++) {
+      BlockingQueue<Task> partition = new LinkedBlockingQueue<>();
+      partitions.add(partition);
+      Thread worker = new Thread(() -> applyTasks(partition), "apply-" + i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Hands off the commands of the value executed at a state id.  Values must be submitted one at a
+   * time, in state id order.
+   */
+  void submit(int stateId, Value value) {
+    List<List<Value>> byPartition = new ArrayList<>(Collections.nCopies(partitions.size(), null));
+    int parts = 0;
+    for (Value command : value.getCommands()) {
+      if (command.getCommand() != Command.PUT && command.getCommand() != Command.DELETE) {
+        continue;
+      }
+      int partition = partitionOf(command.getKey());
+      if (byPartition.get(partition) == null) {
+        byPartition.set(partition, new ArrayList<>());
+        parts++;
+      }
+      byPartition.get(partition).add(command);
+    }
+    Pending executed = new Pending(stateId, parts);
+    synchronized (this) {
+      pending.addLast(executed);
+      submittedStateId = stateId;
+    }
+    if (parts == 0) {
+      advance();
+    }
+    for (int i = 0; i < byPartition.size(); i++) {
+      if (byPartition.get(i) != null) {
+        partitions.get(i).add(new Task(byPartition.get(i), executed));
+      }
+    }
+  }
+
+  /**
+   * Sets both watermarks, for example after the store has been replaced by a snapshot.  Only called
+   * once every submitted value has been applied.
+   */
+  synchronized void reset(int stateId) {
+    submittedStateId = stateId;
+    appliedStateId = stateId;
+    notifyAll();
+  }
+
+  int getAppliedStateId() {
+    return appliedStateId;
+  }
+
+  // Blocks until every value submitted so far has been applied.
+  void awaitSubmitted() throws InterruptedException {
+    int submitted = submittedStateId;
+    if (appliedStateId < submitted) {
+      awaitApplied(submitted);
+    }
+  }
+
+  // Blocks until every value up to the given state id has been applied.
+  synchronized void awaitApplied(int stateId) throws InterruptedException {
+    while (appliedStateId < stateId) {
+      wait();
+    }
+  }
+
+  private int partitionOf(String key) {
+    return Math.floorMod(key.hashCode(), partitions.size());
+  }
+
+  private void applyTasks(BlockingQueue<Task> partition) {
+    while (true) {
+      Task task;
+      try {
+        task = partition.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      for (Value command : task.commands) {
+        try {
+          applier.accept(command);
+        } catch (RuntimeException e) {
+          System.err.println("Could not apply " + command.getCommand() + " " + command.getKey()
+                  + " at state id " + task.executed.stateId + ": " + e);
+        }
+      }
+      if (task.executed.remaining.decrementAndGet() == 0) {
+        advance();
+      }
+    }
+  }
+
+  // Moves the applied watermark past every state id at the front that has been applied in full
+  private synchronized void advance() {
+    boolean advanced = false;
+    while (!pending.isEmpty() && pending.peekFirst().remaining.get() == 0) {
+      appliedStateId = pending.removeFirst().stateId;
+      advanced = true;
+    }
+    if (advanced) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * A state id's commands not yet applied, counted by partition.
+   */
+  private static class Pending {
+    int stateId;
+    AtomicInteger remaining;
+
+    Pending(int stateId, int parts) {
+      this.stateId = stateId;
+      this.remaining = new AtomicInteger(parts);
+    }
+  }
+
+  /**
+   * The commands of one state id that fall in one partition.
+   */
+  private static class Task {
+    List<Value> commands;
+    Pending executed;
+
+    Task(List<Value> commands, Pending executed) {
+      this.commands = commands;
+      this.executed = executed;
+    }
+  }
+}
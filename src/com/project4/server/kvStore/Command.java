@@ -3,5 +3,7 @@ package com.project4.server.kvStore;
 public enum Command {
   PUT,
   DELETE,
-  NO_OP
+  NO_OP,
+  BATCH,
+  RECONFIG
 }
@@ -0,0 +1,43 @@
+package com.project4.server.kvStore;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default storage engine, backed by a ConcurrentHashMap.  Reads take no lock at all, so they scale
+ * with the number of cores while the learner writes.
+ */
+public class ConcurrentStorageEngine implements StorageEngine {
+  private Map<String, String> entries = new ConcurrentHashMap<>();
+
+  @Override
+  public String get(String key) {
+    return entries.get(key);
+  }
+
+  @Override
+  public void put(String key, String value) {
+    entries.put(key, value);
+  }
+
+  @Override
+  public void remove(String key) {
+    entries.remove(key);
+  }
+
+  @Override
+  public void putAll(Map<String, String> entries) {
+    this.entries.putAll(entries);
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> iterator() {
+    return entries.entrySet().iterator();
+  }
+}
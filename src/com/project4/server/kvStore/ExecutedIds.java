@@ -0,0 +1,86 @@
+package com.project4.server.kvStore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The ids of the client commands a replica has executed, so that a command chosen at two state ids
+ * is only executed at the first.  Every server numbers the commands submitted to it from 0, and
+ * mostly executes them in that order, so each origin is kept as the number below which every
+ * command has been executed plus the few executed commands above it.
+ * <p>
+ * Replicas execute values in state id order and record ids as they go, so every replica drops the
+ * same duplicates.  The ids are saved with each snapshot, since the values that recorded them are
+ * compacted away with the log.
+ */
+class ExecutedIds {
+  private Map<String, Origin> origins = new HashMap<>();
+
+  /**
+   * Records that a command has been executed.
+   *
+   * @return false if the command had already been executed
+   */
+  boolean add(String origin, long seq) {
+    Origin executed = origins.get(origin);
+    if (executed == null) {
+      executed = new Origin(0);
+      origins.put(origin, executed);
+    }
+    if (seq < executed.executedBelow || !executed.above.add(seq)) {
+      return false;
+    }
+    while (executed.above.remove(executed.executedBelow)) {
+      executed.executedBelow++;
+    }
+    return true;
+  }
+
+  ExecutedIds copy() {
+    ExecutedIds copy = new ExecutedIds();
+    for (Map.Entry<String, Origin> origin : origins.entrySet()) {
+      Origin executed = new Origin(origin.getValue().executedBelow);
+      executed.above.addAll(origin.getValue().above);
+      copy.origins.put(origin.getKey(), executed);
+    }
+    return copy;
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(origins.size());
+    for (Map.Entry<String, Origin> origin : origins.entrySet()) {
+      out.writeUTF(origin.getKey());
+      out.writeLong(origin.getValue().executedBelow);
+      out.writeInt(origin.getValue().above.size());
+      for (long seq : origin.getValue().above) {
+        out.writeLong(seq);
+      }
+    }
+  }
+
+  static ExecutedIds read(DataInputStream in) throws IOException {
+    ExecutedIds ids = new ExecutedIds();
+    for (int i = in.readInt(); i > 0; i--) {
+      String origin = in.readUTF();
+      Origin executed = new Origin(in.readLong());
+      for (int j = in.readInt(); j > 0; j--) {
+        executed.above.add(in.readLong());
+      }
+      ids.origins.put(origin, executed);
+    }
+    return ids;
+  }
+
+  private static class Origin {
+    private long executedBelow; // Every command numbered below this one has been executed
+    private TreeSet<Long> above = new TreeSet<>(); // Executed commands numbered above it
+
+    private Origin(long executedBelow) {
+      this.executedBelow = executedBelow;
+    }
+  }
+}
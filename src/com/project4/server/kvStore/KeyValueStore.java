@@ -2,6 +2,8 @@ package com.project4.server.kvStore;
 
 import java.net.MalformedURLException;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents a Key Value store, to be stored by a TCP, UDP, or RPC server.  A KeyValueStore should
@@ -21,21 +23,124 @@ public interface KeyValueStore{
    *
    * @param key   the key
    * @param value the value
+   * @return the state id the put was executed at, or -1 if it was not executed
+   *         in time; it may still be executed later
    */
-  boolean put(String key, String value);
+  int put(String key, String value);
+
+  /**
+   * Requests a put operation without waiting for it to be executed.  The future is completed on the
+   * thread that executes the put, or on a timer thread if it times out, so dependent actions should
+   * be brief.
+   *
+   * @param key   the key
+   * @param value the value
+   * @return completed with the state id the put was executed at, or -1 if it was not executed
+   *         in time; it may still be executed later
+   */
+  CompletableFuture<Integer> putAsync(String key, String value);
 
   /**
    * Requests a get operation on the key-value store.
    *
    * @param key the key
    * @return the value associated with this key, or '[NULL]' if none
+   * @throws IllegalStateException if this replica has not yet replayed past a snapshot it loaded,
+   *                               or, in LEASE or QUORUM read mode, the read could not be
+   *                               confirmed in time
    */
   String get(String key);
 
   /**
-   * Requests a get operation on the key-value store.
+   * Requests a get operation that reflects a client's session, for example its earlier puts and
+   * deletes.  Waits briefly for this replica to catch up if it has not.
+   *
+   * @param key          the key
+   * @param sessionToken merged tokens of the writes the read must reflect (see sessionToken), or
+   *                     "0" for none
+   * @param maxLag       most state ids the read may trail the newest state id this replica has
+   *                     heard of, or -1 for any
+   * @return the value associated with this key, or '[NULL]' if none
+   * @throws IllegalArgumentException if the session token is malformed
+   * @throws IllegalStateException if this replica could not catch up in time
+   */
+  String get(String key, String sessionToken, int maxLag);
+
+  /**
+   * Returns the session token for a put or delete on a key, executed at the given state id.  A
+   * token holds one state id for each Paxos group, separated by dots, or a single state id if there
+   * is one group.  A client merges the tokens of its writes by keeping the highest state id in
+   * each position, and a get for the merged token reflects every one of the writes.
+   *
+   * @param key     the key written
+   * @param stateId the state id returned by put or delete
+   * @return the write's session token
+   */
+  String sessionToken(String key, int stateId);
+
+  /**
+   * Requests a delete operation on the key-value store.
+   *
+   * @param key the key
+   * @return the state id the delete was executed at, or -1 if it was not executed
+   *         in time; it may still be executed later
+   */
+  int delete(String key);
+
+  /**
+   * Requests a delete operation without waiting for it to be executed.  The future is completed on
+   * the thread that executes the delete, or on a timer thread if it times out, so dependent actions
+   * should be brief.
    *
    * @param key the key
+   * @return completed with the state id the delete was executed at, or -1 if it was not executed
+   *         in time; it may still be executed later
+   */
+  CompletableFuture<Integer> deleteAsync(String key);
+
+  /**
+   * Adds a server to the cluster, or moves a member to a new host, through consensus.  The server
+   * should be started after it has been added, so that the members accept its connections.
+   *
+   * @param id   the new server's id
+   * @param host the new server's host
+   * @return the state id the change was executed at, or -1 if it was not executed
+   *         in time; it may still be executed later
+   * @throws IllegalArgumentException if the id or host is invalid, or the change would leave
+   *                                  quorums that do not overlap, checked both when it is submitted
+   *                                  and when it is executed
+   * @throws IllegalStateException    if the store is sharded and only some groups executed the
+   *                                  change in time; repeating it changes only the others
+   */
+  int addServer(String id, String host);
+
+  /**
+   * Removes a server from the cluster through consensus.  The removed server stops proposing values
+   * and may then be shut down.  Removing a server that is not a member changes nothing, so a
+   * repeated removal succeeds like the first.
+   *
+   * @param id the member's id
+   * @return the state id the change was executed at, or -1 if it was not executed
+   *         in time; it may still be executed later
+   * @throws IllegalArgumentException if the server is the only member, or the change would leave
+   *                                  quorums that do not overlap, checked both when it is submitted
+   *                                  and when it is executed
+   * @throws IllegalStateException    if the store is sharded and only some groups executed the
+   *                                  change in time; repeating it changes only the others
+   */
+  int removeServer(String id);
+
+  /**
+   * Returns the ids of the replicas this replica believes lead each Paxos group, which may include
+   * itself.  A key belongs to group Math.floorMod(key.hashCode(), groups), where groups is the
+   * size of the list.
+   *
+   * @return each group's leader's server id, or null where no leader is known
+   */
+  List<String> getLeaderIds();
+
+  /**
+   * Returns the state id of the next operation this replica will execute.
    */
-  boolean delete(String key);
+  int getStateId();
 }
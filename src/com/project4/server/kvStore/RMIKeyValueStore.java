@@ -3,14 +3,20 @@ package com.project4.server.kvStore;
 import com.project4.server.kvStore.paxos.Acceptor;
 import com.project4.server.kvStore.paxos.GrantedMessage;
 import com.project4.server.kvStore.paxos.Learner;
+import com.project4.server.kvStore.paxos.NioTransport;
 import com.project4.server.kvStore.paxos.PaxosMessenger;
 import com.project4.server.kvStore.paxos.PermissionOutcome;
 import com.project4.server.kvStore.paxos.ProposalQueue;
 import com.project4.server.kvStore.paxos.Proposer;
+import com.project4.server.kvStore.paxos.QuorumCall;
+import com.project4.server.kvStore.paxos.ReadIndex;
+import com.project4.server.kvStore.paxos.StateChunk;
 import com.project4.server.kvStore.paxos.SuggestionId;
 import com.project4.server.kvStore.paxos.Value;
+import com.project4.server.kvStore.paxos.WriteAheadLog;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -21,53 +27,267 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a Key Value store, to be stored and accessed by a server using the KeyValueStore
  * interface.  Fault-tolerant consensus amongst replicas is achieved through Paxos. Replicas
- * communicate via RMI using the PaxosMessenger interface.  The cluster is expected to consist of 5
- * servers, and so assumes that 3 servers constitute a majority for Paxos.
+ * communicate using the PaxosMessenger interface, either via RMI or, if kvstore.transport is NIO,
+ * via an NioTransport listening on kvstore.nio.basePort plus the server id.  Each Paxos message is
+ * sent to all replicas in parallel, and a phase ends as soon as a majority has responded.
+ * <p>
+ * The cluster's members are read from the server config file, and a majority of them is a quorum.
+ * With kvstore.quorum.phase1 and kvstore.quorum.phase2, the quorums for taking leadership and for
+ * choosing each value can differ in size (Flexible Paxos), as long as they add up to more than the
+ * number of members.  A smaller phase 2 quorum lets the leader choose values without waiting for
+ * its slowest replicas, at the cost of a larger quorum when leadership changes.
+ * Membership can change while the cluster runs: a RECONFIG value adds or removes one server, and
+ * every replica changes its membership when it executes that value, so all replicas change at the
+ * same state id.  Since each change adds or removes a single server, any majority before a change
+ * overlaps any majority after it.  Membership is saved in snapshots along with the store.
+ * <p>
+ * Paxos state is recorded in a write-ahead log under kvstore.dataDir.  On startup, the log is
+ * replayed to restore the Acceptor's promises and accepted values and to rebuild the KV store.
+ * Every kvstore.snapshot.interval executed values, a Snapshot of the KV store is written in the
+ * background and the write-ahead log before it is deleted, so that the log does not grow forever.
+ * Snapshots are fuzzy, holding some writes from after their state id, so a replica that loads one,
+ * on startup or from a StateTransfer, serves no reads until it has executed past every state id
+ * the snapshot may hold; until then GETs fail as STALE.
+ * <p>
+ * Consensus reports are executed in state id order, but executing a value only logs it and hands
+ * it to an ApplyStage, whose kvstore.apply.workers threads write it to the StorageEngine.  Reads
+ * wait for the apply stage to catch up with every value executed before them.  Every client
+ * command carries an id from the server it was submitted to, and a command chosen at more than one
+ * state id is only executed at the first (see ExecutedIds).
+ * <p>
+ * A replica that finds it has missed consensus reports, for example after rejoining the cluster,
+ * catches up from the most advanced replica with a StateTransfer while it keeps serving.
+ * <p>
+ * Reads are served according to kvstore.readMode.  In LOCAL mode, every replica answers from its
+ * own store, which may be stale.  In LEASE mode, reads are linearizable: the leader answers from
+ * its own store while it holds a lease (see Proposer), and other replicas pass reads to it.  In
+ * QUORUM mode, reads are linearizable without trusting clocks: every replica answers from its own
+ * store once it has executed up to a ReadIndex confirmed by a majority.
+ * <p>
+ * A ShardedKeyValueStore runs several of these stores side by side, one per Paxos group.
  */
 public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessenger, KeyValueStore, Learner {
+  private static final long serialVersionUID = 1L;
   private static final String URL_NAME = "KVStore";
   private static final int DEFAULT_RMI_PORT = 1099;
   private static final String SERVER_CONFIG_FILE = "serverConfig.txt";
   private static final int SERV_ID = 0;
   private static final int HOST = 1;
-  private static final int REPLICA_MAJORITY = 3;
+  private static final long PHASE_TIMEOUT_MILLIS = 5000;
+  private static final int PHASE1_QUORUM = Integer.getInteger("kvstore.quorum.phase1", 0);
+  private static final int PHASE2_QUORUM = Integer.getInteger("kvstore.quorum.phase2", 0);
+  private static final long ACCEPTOR_DELAY_MILLIS = Long.getLong("kvstore.bench.acceptorDelayMillis",
+          0);
+  private static final String DATA_DIR = System.getProperty("kvstore.dataDir", "data");
+  private static final WriteAheadLog.Durability DURABILITY = WriteAheadLog.Durability.valueOf(
+          System.getProperty("kvstore.durability", "GROUP").toUpperCase());
+  private static final int SNAPSHOT_INTERVAL = Integer.getInteger("kvstore.snapshot.interval", 10000);
+  private static final int MAX_CHUNK_BYTES = 1048576;
+  private static final int MAX_CHOSEN_VALUES = 1024;
+  private static final ReadMode READ_MODE = ReadMode.valueOf(
+          System.getProperty("kvstore.readMode", "LOCAL").toUpperCase());
+  private static final long LEASE_MILLIS = READ_MODE == ReadMode.LEASE
+          ? Long.getLong("kvstore.lease.millis", 2000) : 0;
+  private static final long LEASE_RETRY_MILLIS = 20;
+  private static final long READ_INDEX_NUDGE_MILLIS = 200;
+  private static final boolean NIO_TRANSPORT = System.getProperty("kvstore.transport", "RMI")
+          .equalsIgnoreCase("NIO");
+  private static final int NIO_BASE_PORT = Integer.getInteger("kvstore.nio.basePort", 7000);
+  private static final int NIO_GROUP_PORTS = 100; // Ports for each Paxos group's server ids
+  private static final long REQUEST_TIMEOUT_MILLIS = Long.getLong("kvstore.request.timeoutMillis",
+          30000);
+  private static final long SESSION_WAIT_MILLIS = Long.getLong("kvstore.session.waitMillis", 1000);
+  private static final ScheduledExecutorService requestTimeouts =
+          Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread timer = new Thread(task, "request-timeouts");
+            timer.setDaemon(true);
+            return timer;
+          });
+  private static final Storage STORAGE = Storage.valueOf(
+          System.getProperty("kvstore.storage", "CONCURRENT").toUpperCase());
+  private static final int STORAGE_STRIPES = Integer.getInteger("kvstore.storage.stripes", 64);
+  private static final int APPLY_WORKERS = Integer.getInteger("kvstore.apply.workers",
+          Runtime.getRuntime().availableProcessors());
 
   private String myId = null; // Unique id to identify this process for RMI purposes
-  private Map<String, String> kvStore = new HashMap<>(); // The KV store
-  private List<PaxosMessenger> replicas = new CopyOnWriteArrayList<>(); // Registered data replica servers
-  private Map<String, String> replicaRegistrationData = new HashMap<>(); // Data to register replica servers
+  private int group; // Paxos group this store runs, when the keys are sharded over several
+  private String groupSuffix; // Distinguishes this group's RMI names and files from group 0's
+  private String origin; // Unique to this run of this server, to identify the commands it submits
+  private AtomicLong nextSeq = new AtomicLong(); // Number for the next command submitted here
+  private ExecutedIds executedIds = new ExecutedIds(); // Commands executed, so copies are dropped
+  private volatile StorageEngine kvStore = newStorageEngine(); // The KV store
+  private Map<String, PaxosMessenger> replicas = new ConcurrentHashMap<>(); // Registered data replica servers, by id
+  private Map<String, String> replicaRegistrationData = new ConcurrentHashMap<>(); // Every member's host, by id
+  private Map<Value, String> refusedReconfigs = new ConcurrentHashMap<>(); // Why own RECONFIGs were skipped
+  private volatile boolean connecting = false; // Set once recovery is over, so new members are connected
+  private NioTransport transport = null;
   private SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS");
 
   // Classes for Paxos implementation
   private ProposalQueue queue = new ProposalQueue();
-  private Acceptor acceptor = new Acceptor();
+  private WriteAheadLog wal = null;
+  private Acceptor acceptor = null;
+  private Proposer proposer = null;
+  private ExecutorService dispatchWorkers = newDispatchWorkers(); // Threads for parallel Paxos messages
+  private TreeMap<Integer, Value> committedValues = new TreeMap<>(); // Reports waiting on earlier state ids
+  private volatile int newestStateId = 0; // Highest state id reported as chosen
+  private ExecutorService snapshotWorker = newSingleWorker("snapshot-writer"); // Writes snapshots in the background
+  private ApplyStage applyStage = new ApplyStage(APPLY_WORKERS, this::applyCommand); // Applies executed values
+  private int executedSinceSnapshot = 0;
+  private int pendingSnapshots = 0; // Snapshots started but not yet saved
+  private int snapshotStateId = 1; // State id of the latest saved snapshot
+  private volatile int snapshotIncludedStateId = 0; // Last state id the loaded snapshot may hold
+  private ExecutorService transferWorker = newSingleWorker("state-transfer"); // Catches up this replica
+  private boolean catchingUp = false;
+  private ReadIndex readIndex = new ReadIndex(dispatchWorkers, () -> {
+    int index = sendReadIndexMessages();
+    if (index < 0) {
+      throw new RemoteException("Could not reach a majority of replicas");
+    }
+    return index;
+  });
 
   // --------------------------------- Constructor methods ----------------------------------------
 
   public RMIKeyValueStore() throws RemoteException {
+    this(0);
+  }
+
+  /**
+   * Creates the store for one Paxos group of a ShardedKeyValueStore.  Every group has its own
+   * replicas, write-ahead log and snapshots, told apart from group 0's by a "-g[group]" suffix.
+   */
+  public RMIKeyValueStore(int group) throws RemoteException {
     super();
+    this.group = group;
+    this.groupSuffix = group == 0 ? "" : "-g" + group;
   }
 
   @Override
   public void run(String myID) throws RemoteException, MalformedURLException, IllegalArgumentException {
     this.myId = myID;
-    Naming.rebind(URL_NAME + myId, this);
+    this.origin = myId + "@" + Long.toString(System.currentTimeMillis(), 36);
     readConfigFile();
-    for (String id : replicaRegistrationData.keySet()) {
-      addReplica(replicaRegistrationData.get(id), id);
+    recoverState();
+    checkQuorums(replicaRegistrationData.size());
+    connecting = true;
+    if (NIO_TRANSPORT) {
+      startNioTransport();
+    } else {
+      Naming.rebind(URL_NAME + myId + groupSuffix, this);
+      for (Map.Entry<String, String> member : replicaRegistrationData.entrySet()) {
+        if (!member.getKey().equals(myId)) {
+          addReplica(member.getValue(), member.getKey());
+        }
+      }
     }
-    replicas.add(this);
-    System.out.println(currentTime() + ">> Replicas found: " + (replicas.size() - 1));
-    Proposer proposer = new Proposer(queue, this, myId);
+    if (isMember()) {
+      replicas.put(myId, this);
+    } else {
+      System.out.println(currentTime() + ">> Server " + myId
+              + " is not a member of the cluster until it is added with RECONFIG ADD");
+    }
+    System.out.println(currentTime() + (NIO_TRANSPORT ? ">> Replicas configured: " : ">> Replicas found: ")
+            + (replicas.size() - (isMember() ? 1 : 0)) + " of " + replicaRegistrationData.size()
+            + " members, quorums of " + phase1Quorum() + " and " + phase2Quorum());
+    proposer = new Proposer(queue, this, myId, LEASE_MILLIS);
     proposer.start();
+    synchronized (this) {
+      startCatchUp(); // Operations may have been chosen while this replica was down
+    }
+  }
+
+  // Loads the latest snapshot and replays the write-ahead log after it, before any other replica
+  // can reach this one.
+  private void recoverState() throws IllegalArgumentException {
+    File dataDir = new File(DATA_DIR);
+    int firstSegment = 0;
+    try {
+      Snapshot snapshot = Snapshot.read(snapshotFile());
+      if (snapshot != null) {
+        kvStore.putAll(snapshot.getEntries());
+        queue.setStateId(snapshot.getStateId());
+        snapshotStateId = snapshot.getStateId();
+        firstSegment = snapshot.getWalSegment();
+        snapshotIncludedStateId = snapshot.getLastIncludedStateId();
+        replicaRegistrationData.clear();
+        replicaRegistrationData.putAll(snapshot.getMembers());
+        executedIds = snapshot.getExecutedIds();
+      }
+      wal = new WriteAheadLog(dataDir, "paxos-" + myId + groupSuffix, DURABILITY);
+      acceptor = new Acceptor(wal, LEASE_MILLIS);
+      wal.replay(firstSegment, new WriteAheadLog.Replayer() {
+        @Override
+        public void promised(SuggestionId promisedId) {
+          acceptor.restorePromise(promisedId);
+        }
+
+        @Override
+        public void accepted(int stateId, SuggestionId suggestionId, Value value) {
+          acceptor.restoreAccepted(stateId, suggestionId, value);
+        }
+
+        @Override
+        public void committed(int stateId, Value value) {
+          acceptor.reportChosen(stateId, value);
+          if (stateId >= queue.getStateId()) {
+            executeValue(value);
+            queue.setStateId(stateId + 1);
+          }
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not recover state from " + dataDir
+              + " (" + e.getMessage() + ")");
+    }
+    acceptor.truncate(snapshotStateId);
+    applyStage.reset(queue.getStateId() - 1);
+    System.out.println(currentTime() + ">> Recovered state up to state id " + (queue.getStateId() - 1));
+  }
+
+  // Listens for other replicas and sets up a connection to each one in the config file.  Replicas
+  // that are down are kept, and their calls fail until they come back.
+  private void startNioTransport() throws RemoteException {
+    try {
+      transport = new NioTransport(dispatchWorkers, PHASE_TIMEOUT_MILLIS);
+      transport.listen(nioPort(myId), this);
+      for (Map.Entry<String, String> replica : replicaRegistrationData.entrySet()) {
+        if (!replica.getKey().equals(myId)) {
+          replicas.put(replica.getKey(), transport.connect(replica.getValue(), nioPort(replica.getKey())));
+        }
+      }
+    } catch (IOException e) {
+      throw new RemoteException("Could not start NIO transport: " + e.getMessage());
+    }
+  }
+
+  private int nioPort(String id) {
+    try {
+      return NIO_BASE_PORT + group * NIO_GROUP_PORTS + Integer.parseInt(id);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Server ids must be integers with the NIO transport: " + id);
+    }
   }
 
   private void readConfigFile() {
@@ -75,9 +295,7 @@ public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessen
       String line;
       while ((line = script.readLine()) != null) {
         String[] remoteServData = parseConfigLine(line);
-        if (!remoteServData[SERV_ID].equals(myId)) {
-          replicaRegistrationData.put(remoteServData[SERV_ID], remoteServData[HOST]);
-        }
+        replicaRegistrationData.put(remoteServData[SERV_ID], remoteServData[HOST]);
       }
     } catch (FileNotFoundException e) {
       throw new IllegalArgumentException("Could not locate server config file: " + SERVER_CONFIG_FILE);
@@ -96,7 +314,7 @@ public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessen
 
   private void addReplica(String host, String id) throws RemoteException {
     String registryURL = "rmi://" + host + ":" + DEFAULT_RMI_PORT
-            + "/" + URL_NAME + id;
+            + "/" + URL_NAME + id + groupSuffix;
 
     PaxosMessenger replica = bindReplica(registryURL); // Connect to remote replica
     if (replica == null) {
@@ -112,7 +330,7 @@ public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessen
       throw new RemoteException("Server with Id= " + id + " Host= "
               + host + " could not bind to this server.");
     }
-    replicas.add(replica);
+    replicas.put(id, replica);
   }
 
   private PaxosMessenger bindReplica(String registryURL) {
@@ -125,18 +343,36 @@ public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessen
     return replica;
   }
 
+  // Connects to a member added while this server runs.  A member that is not up yet connects to
+  // this server when it starts, as in run.
+  private void connectReplica(String id, String host) {
+    if (NIO_TRANSPORT) {
+      replicas.put(id, transport.connect(host, nioPort(id)));
+    } else {
+      try {
+        addReplica(host, id);
+      } catch (RemoteException e) {
+        System.err.println(currentTime() + ">> Could not connect to server " + id + ": "
+                + e.getMessage());
+      }
+    }
+    if (!replicaRegistrationData.containsKey(id)) {
+      replicas.remove(id); // Removed again while connecting
+    }
+  }
+
   @Override
   public boolean registerThisId(String id) {
     if (replicaRegistrationData.get(id) == null) {
       return false;
     }
     String registryURL = "rmi://" + replicaRegistrationData.get(id) + ":" + DEFAULT_RMI_PORT
-            + "/" + URL_NAME + id;
+            + "/" + URL_NAME + id + groupSuffix;
     PaxosMessenger replica = bindReplica(registryURL);
     if (replica == null) {
       return false;
     }
-    replicas.add(replica);
+    replicas.put(id, replica);
     return true;
   }
 
@@ -144,94 +380,395 @@ public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessen
 
 
   @Override
-  public boolean put(String key, String value) {
-    Value putValue = new Value(Command.PUT, key, value);
+  public int put(String key, String value) {
+    Value putValue = newCommand(Command.PUT, key, value);
     queue.addTask(putValue);
-    while (putValue.notExecuted()) {
-      // Wait
-    }
-    return true;
+    return awaitCommand(putValue);
+  }
+
+  @Override
+  public CompletableFuture<Integer> putAsync(String key, String value) {
+    Value putValue = newCommand(Command.PUT, key, value);
+    CompletableFuture<Integer> completion = commandCompletion(putValue);
+    queue.addTask(putValue);
+    return completion;
   }
 
   @Override
   public String get(String key) {
-    return kvStore.get(key);
+    if (READ_MODE == ReadMode.LEASE) {
+      return leaseRead(key);
+    }
+    if (READ_MODE == ReadMode.QUORUM) {
+      return quorumRead(key);
+    }
+    return readApplied(key);
+  }
+
+  // Reads locally once this replica has executed every value chosen before the read arrived.  If
+  // that takes a while, a no-op is queued to settle any state id left undecided, and this replica
+  // checks whether it has fallen behind.  Throws IllegalStateException if no read index is found, or
+  // this replica does not reach it, in time, since a local read may be stale.
+  private String quorumRead(String key) {
+    long deadline = System.currentTimeMillis() + PHASE_TIMEOUT_MILLIS;
+    try {
+      int index = readIndex.request().get(PHASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      while (!queue.awaitStateId(index + 1, READ_INDEX_NUDGE_MILLIS)) {
+        if (System.currentTimeMillis() >= deadline) {
+          throw new TimeoutException();
+        }
+        if (queue.isEmpty()) {
+          queue.addTask(new Value());
+        }
+        synchronized (this) {
+          startCatchUp();
+        }
+      }
+      return readApplied(key);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // Answered below
+    }
+    throw new IllegalStateException("No read index was confirmed for GET " + key + " in time");
+  }
+
+  // Reads locally while this replica holds the leader lease, or from the replica that does.  If no
+  // replica holds the lease, a no-op is queued so that this replica takes leadership.  Throws
+  // IllegalStateException if no lease is confirmed in time, since a local read may be stale.
+  private String leaseRead(String key) {
+    long deadline = System.currentTimeMillis() + PHASE_TIMEOUT_MILLIS;
+    try {
+      while (System.currentTimeMillis() < deadline) {
+        if (proposer.holdsLease() && awaitReadBarrier(deadline - System.currentTimeMillis())) {
+          String value = readApplied(key);
+          if (proposer.holdsLease()) {
+            return value; // The lease outlasted the read, so no other leader can have written
+          }
+          continue;
+        }
+        String leaderId = acceptor.getLastPermittedId().getServerId();
+        PaxosMessenger leader = replicas.get(leaderId);
+        if (leader != null && !leaderId.equals(myId)) {
+          try {
+            return leader.readFromLeader(key);
+          } catch (RemoteException e) {
+            // The leader has crashed or lost its lease
+          }
+        }
+        if (queue.isEmpty()) {
+          queue.addTask(new Value());
+        }
+        Thread.sleep(LEASE_RETRY_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    throw new IllegalStateException("No leader lease was confirmed for GET " + key + " in time");
+  }
+
+  // Waits until every value chosen so far has been executed here.  Returns false on timeout.
+  private boolean awaitReadBarrier(long timeoutMillis) throws InterruptedException {
+    return queue.awaitStateId(proposer.getReadBarrier() + 1, timeoutMillis);
   }
 
   @Override
-  public boolean delete(String key) {
-    Value getValue = new Value(Command.DELETE, key, null);
-    queue.addTask(getValue);
-    while (getValue.notExecuted()) {
-      // Wait
+  public String get(String key, String sessionToken, int maxLag) {
+    int minStateId;
+    try {
+      minStateId = Integer.parseInt(sessionToken);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Received session token = " + sessionToken
+              + ". A token for one Paxos group must be a state id.");
+    }
+    return get(key, minStateId, maxLag);
+  }
+
+  // Session reads wait until this replica has executed the client's last write, or is close enough
+  // to the newest state id it has heard of, and then read as usual.
+  public String get(String key, int minStateId, int maxLag) {
+    int required = minStateId;
+    if (maxLag >= 0) {
+      required = Math.max(required, newestStateId - maxLag);
+    }
+    if (required == Integer.MAX_VALUE) {
+      throw new IllegalStateException("Server " + myId + " cannot execute past state id "
+              + required);
+    }
+    try {
+      if (queue.getStateId() <= required) {
+        synchronized (this) {
+          startCatchUp();
+        }
+        if (!queue.awaitStateId(required + 1, SESSION_WAIT_MILLIS)) {
+          throw new IllegalStateException("Server " + myId + " has executed up to state id "
+                  + (queue.getStateId() - 1) + " of " + required);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for state id " + required);
+    }
+    return get(key);
+  }
+
+  @Override
+  public String sessionToken(String key, int stateId) {
+    return Integer.toString(stateId);
+  }
+
+  @Override
+  public int delete(String key) {
+    Value deleteValue = newCommand(Command.DELETE, key, null);
+    queue.addTask(deleteValue);
+    return awaitCommand(deleteValue);
+  }
+
+  @Override
+  public CompletableFuture<Integer> deleteAsync(String key) {
+    Value deleteValue = newCommand(Command.DELETE, key, null);
+    CompletableFuture<Integer> completion = commandCompletion(deleteValue);
+    queue.addTask(deleteValue);
+    return completion;
+  }
+
+  @Override
+  public int addServer(String id, String host) {
+    checkAddServer(id, host);
+    return reconfigure(newCommand(Command.RECONFIG, id, host));
+  }
+
+  @Override
+  public int removeServer(String id) {
+    checkRemoveServer(id);
+    return reconfigure(newCommand(Command.RECONFIG, id, null));
+  }
+
+  // Throws IllegalArgumentException if the server cannot be added with the current membership
+  void checkAddServer(String id, String host) {
+    if (id == null || host == null) {
+      throw new IllegalArgumentException("A new server needs both an id and a host.");
+    }
+    if (NIO_TRANSPORT) {
+      nioPort(id); // Checks that the id is an integer
+    }
+    String refusal = reconfigRefusal(id, host);
+    if (refusal != null) {
+      throw new IllegalArgumentException(refusal);
+    }
+  }
+
+  // Throws IllegalArgumentException if the server cannot be removed with the current membership.
+  // Removing a server that is not a member changes nothing, so a repeated removal is allowed.
+  void checkRemoveServer(String id) {
+    String refusal = reconfigRefusal(id, null);
+    if (refusal != null) {
+      throw new IllegalArgumentException(refusal);
+    }
+  }
+
+  // Returns why a membership change cannot be applied to the current membership, or null if it can.
+  // A change that is already in effect can always be applied, as it changes nothing.
+  private String reconfigRefusal(String id, String host) {
+    int members = replicaRegistrationData.size();
+    boolean member = replicaRegistrationData.containsKey(id);
+    int newMembers = members;
+    if (host == null && member) {
+      newMembers--;
+    } else if (host != null && !member) {
+      newMembers++;
+    }
+    if (newMembers == members) {
+      return null;
+    }
+    if (newMembers == 0) {
+      return "Cannot remove the last member of the cluster.";
+    }
+    try {
+      checkQuorums(members, newMembers);
+    } catch (IllegalArgumentException e) {
+      return e.getMessage();
+    }
+    return null;
+  }
+
+  // Returns the member's host, or null if the server is not a member
+  String getMemberHost(String id) {
+    return replicaRegistrationData.get(id);
+  }
+
+  // Gives a client command the next id from this server, so that copies of it can be told apart
+  // from equal commands submitted by other clients
+  private Value newCommand(Command command, String key, String value) {
+    return new Value(command, key, value, origin, nextSeq.getAndIncrement());
+  }
+
+  // Throws IllegalArgumentException if the change was refused when it was executed
+  private int reconfigure(Value reconfigValue) {
+    queue.addTask(reconfigValue);
+    int stateId = awaitCommand(reconfigValue);
+    String refusal = refusedReconfigs.remove(reconfigValue);
+    if (refusal != null) {
+      throw new IllegalArgumentException(refusal);
+    }
+    return stateId;
+  }
+
+  // Completes with a submitted command's state id once it is executed, or with -1 if it is not
+  // executed within kvstore.request.timeoutMillis; the command may still execute later.
+  private static CompletableFuture<Integer> commandCompletion(Value command) {
+    CompletableFuture<Integer> completion = new CompletableFuture<>();
+    ScheduledFuture<?> timeout = requestTimeouts.schedule(() -> completion.complete(-1),
+            REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    command.getCompletion().whenComplete((stateId, e) -> {
+      timeout.cancel(false);
+      completion.complete(e == null ? stateId : -1);
+    });
+    return completion;
+  }
+
+  // Waits for a submitted command to be executed.  Returns -1 if it is not executed within
+  // kvstore.request.timeoutMillis or the wait is interrupted; the command may still execute later.
+  private int awaitCommand(Value command) {
+    try {
+      return command.awaitExecution(REQUEST_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return -1;
+    } catch (TimeoutException e) {
+      return -1;
     }
-    return true;
   }
 
   // ------------------------------ Paxos Message Handling ----------------------------------------
 
   @Override
   public PermissionOutcome sendPermissionMessages(SuggestionId suggestionId, int stateId) {
+    if (!isMember()) {
+      return refuseNonMember();
+    }
+    int numReplicas = replicas.size();
+    int quorum = phase1Quorum();
+    List<GrantedMessage> responses = QuorumCall.send(dispatchWorkers, replicas.values(),
+        replica -> replica.requestPermission(suggestionId, stateId),
+        received -> countPermission(received, GrantedMessage.Permission.GRANTED) >= quorum
+                || countPermission(received, GrantedMessage.Permission.STATE_NACK) > 0
+                || received.size() - countPermission(received, GrantedMessage.Permission.GRANTED)
+                > numReplicas - quorum,
+        PHASE_TIMEOUT_MILLIS);
     int numGranted = 0;
-    SuggestionId highestAcceptedId = new SuggestionId(0, "");
-    Value highestAcceptedValue = null;
-    GrantedMessage response;
-    for (PaxosMessenger replica : replicas) {
-      try {
-        response = replica.requestPermission(suggestionId, stateId);
-      } catch (RemoteException e) {
+    SortedMap<Integer, SuggestionId> highestAcceptedIds = new TreeMap<>();
+    SortedMap<Integer, Value> highestAcceptedValues = new TreeMap<>();
+    SuggestionId highestPromisedId = null;
+    for (GrantedMessage response : responses) {
+      if (response == null) {
         continue; // This replica has crashed and will be excluded
       }
       if (response.getPermission() == GrantedMessage.Permission.GRANTED) {
         numGranted++;
-        if (response.getLastAcceptedId().compareTo(highestAcceptedId) > 0) {
-          highestAcceptedId = response.getLastAcceptedId();
-          highestAcceptedValue = response.getLastAcceptedValue();
+        for (Map.Entry<Integer, SuggestionId> accepted : response.getLastAcceptedIds().entrySet()) {
+          int acceptedStateId = accepted.getKey();
+          SuggestionId highestAcceptedId = highestAcceptedIds.get(acceptedStateId);
+          if (highestAcceptedId == null || accepted.getValue().compareTo(highestAcceptedId) > 0) {
+            highestAcceptedIds.put(acceptedStateId, accepted.getValue());
+            highestAcceptedValues.put(acceptedStateId, response.getLastAcceptedValues().get(acceptedStateId));
+          }
         }
       }
+      if (response.getPermission() == GrantedMessage.Permission.NACK && response.getPromisedId() != null
+              && (highestPromisedId == null || response.getPromisedId().compareTo(highestPromisedId) > 0)) {
+        highestPromisedId = response.getPromisedId();
+      }
       if (response.getPermission() == GrantedMessage.Permission.STATE_NACK) {
-        // TODO: In a fully consistent version, the proposer will need to catch up its data.
-        try {
-          int newStateId = replica.getStateId();
-          queue.setStateId(newStateId);
-        } catch (RemoteException e) {
-          // Do nothing
+        synchronized (this) {
+          startCatchUp();
         }
         return new PermissionOutcome(false);
       }
     }
-    if (numGranted >= REPLICA_MAJORITY) {
-      return new PermissionOutcome(true, highestAcceptedValue);
+    if (numGranted >= quorum) {
+      return new PermissionOutcome(true, highestAcceptedValues);
     }
-    return new PermissionOutcome(false);
+    return new PermissionOutcome(highestPromisedId);
   }
 
   @Override
   public boolean sendSuggestionMessages(SuggestionId suggestionId, Value value, int stateId) {
-    int numAccepted = 0;
-    boolean accepted;
-    for (PaxosMessenger replica : replicas) {
-      try {
-        accepted = replica.suggestValue(suggestionId, value, stateId);
-      } catch (RemoteException e) {
-        continue; // This replica has crashed and will be excluded
-      }
-      if (accepted) {
-        numAccepted++;
-      }
+    if (!isMember()) {
+      return false;
     }
-    return numAccepted >= REPLICA_MAJORITY;
+    int numReplicas = replicas.size();
+    int quorum = phase2Quorum();
+    List<Boolean> responses = QuorumCall.send(dispatchWorkers, replicas.values(),
+        replica -> replica.suggestValue(suggestionId, value, stateId),
+        received -> countAccepted(received) >= quorum
+                || received.size() - countAccepted(received) > numReplicas - quorum,
+        PHASE_TIMEOUT_MILLIS);
+    return countAccepted(responses) >= quorum;
   }
 
   @Override
   public void sendConsensusMessages(Value value, int stateId) {
-    for (PaxosMessenger replica : replicas) {
-      try {
-        replica.reportConsensus(value, stateId);
-      } catch (RemoteException e) {
-        // Do nothing. This replica has crashed and will miss the consensus announcement
+    // Replicas that have crashed will miss the consensus announcement
+    QuorumCall.send(dispatchWorkers, replicas.values(),
+        replica -> {
+          replica.reportConsensus(value, stateId);
+          return Boolean.TRUE;
+        },
+        received -> countAccepted(received) >= phase2Quorum(),
+        PHASE_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public boolean sendForwardMessage(String leaderId, Value value) {
+    PaxosMessenger leader = replicas.get(leaderId);
+    if (leader == null) {
+      return false;
+    }
+    try {
+      return leader.forwardValue(value);
+    } catch (RemoteException e) {
+      return false; // The leader has crashed, so the caller should take over
+    }
+  }
+
+  @Override
+  public boolean sendLeaseMessages(SuggestionId leaderId) {
+    if (!isMember()) {
+      return false;
+    }
+    int numReplicas = replicas.size();
+    int quorum = phase2Quorum();
+    List<Boolean> responses = QuorumCall.send(dispatchWorkers, replicas.values(),
+        replica -> replica.renewLease(leaderId),
+        received -> countAccepted(received) >= quorum
+                || received.size() - countAccepted(received) > numReplicas - quorum,
+        PHASE_TIMEOUT_MILLIS);
+    return countAccepted(responses) >= quorum;
+  }
+
+  @Override
+  public int sendReadIndexMessages() {
+    if (!isMember()) {
+      return -1;
+    }
+    int numReplicas = replicas.size();
+    int quorum = phase1Quorum();
+    List<Integer> responses = QuorumCall.send(dispatchWorkers, replicas.values(),
+        PaxosMessenger::getAcceptedStateId,
+        received -> countResponded(received) >= quorum
+                || received.size() - countResponded(received) > numReplicas - quorum,
+        PHASE_TIMEOUT_MILLIS);
+    if (countResponded(responses) < quorum) {
+      return -1;
+    }
+    int index = 0;
+    for (Integer response : responses) {
+      if (response != null) {
+        index = Math.max(index, response);
       }
     }
+    return index;
   }
 
   @Override
@@ -239,40 +776,573 @@ public class RMIKeyValueStore extends UnicastRemoteObject implements PaxosMessen
     return queue.getStateId();
   }
 
+  private boolean isMember() {
+    return replicaRegistrationData.containsKey(myId);
+  }
+
+  // The prepare quorum, used to take leadership and to find a read index, which must overlap every
+  // accept quorum
+  private int phase1Quorum() {
+    return phase1Quorum(replicaRegistrationData.size());
+  }
+
+  // The accept quorum, used to choose each value and to renew the leader lease
+  private int phase2Quorum() {
+    return phase2Quorum(replicaRegistrationData.size());
+  }
+
+  // A quorum size that is not configured is the smallest that still overlaps the other one, or a
+  // majority if neither is configured
+  private static int phase1Quorum(int members) {
+    if (PHASE1_QUORUM > 0) {
+      return PHASE1_QUORUM;
+    }
+    return PHASE2_QUORUM > 0 ? members - PHASE2_QUORUM + 1 : members / 2 + 1;
+  }
+
+  private static int phase2Quorum(int members) {
+    if (PHASE2_QUORUM > 0) {
+      return PHASE2_QUORUM;
+    }
+    return PHASE1_QUORUM > 0 ? members - PHASE1_QUORUM + 1 : members / 2 + 1;
+  }
+
+  // Every phase 1 quorum must overlap every phase 2 quorum, so that a new leader learns of any
+  // value that may have been chosen, and both must be reachable with every member up
+  private static void checkQuorums(int members) throws IllegalArgumentException {
+    int phase1 = phase1Quorum(members);
+    int phase2 = phase2Quorum(members);
+    if (phase1 < 1 || phase2 < 1 || phase1 > members || phase2 > members) {
+      throw new IllegalArgumentException("Quorums of " + phase1 + " (phase 1) and " + phase2
+              + " (phase 2) must each be between 1 and the " + members + " members.");
+    }
+    if (phase1 + phase2 <= members) {
+      throw new IllegalArgumentException("Quorums of " + phase1 + " (phase 1) and " + phase2
+              + " (phase 2) must add up to more than the " + members + " members.");
+    }
+  }
+
+  // Quorums from before and after a membership change must overlap as well, since a leader elected
+  // before the change may still be proposing after it
+  private static void checkQuorums(int members, int newMembers) throws IllegalArgumentException {
+    checkQuorums(newMembers);
+    int union = Math.max(members, newMembers);
+    if (phase1Quorum(members) + phase2Quorum(newMembers) <= union
+            || phase1Quorum(newMembers) + phase2Quorum(members) <= union) {
+      throw new IllegalArgumentException("Changing from " + members + " to " + newMembers
+              + " members would let quorums from before and after the change miss each other.");
+    }
+  }
+
+  // A server that has been removed from the cluster does not propose values.  It passes its
+  // clients' values to the leader it last knew of, if that is another server.
+  private PermissionOutcome refuseNonMember() {
+    SuggestionId leaderId = acceptor.getLastPermittedId();
+    if (!leaderId.getServerId().isEmpty() && !leaderId.getServerId().equals(myId)) {
+      return new PermissionOutcome(leaderId);
+    }
+    try {
+      Thread.sleep(LEASE_RETRY_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return new PermissionOutcome(false);
+  }
+
+  // The stable leader knows it leads.  Other replicas name the proposer they last granted
+  // permission to, which is the leader unless a new proposer is taking over.
+  public String getLeaderId() {
+    if (proposer != null && proposer.isLeader()) {
+      return myId;
+    }
+    String leaderId = acceptor == null ? null : acceptor.getLastPermittedId().getServerId();
+    return leaderId == null || leaderId.isEmpty() ? null : leaderId;
+  }
+
+  @Override
+  public List<String> getLeaderIds() {
+    return Collections.singletonList(getLeaderId());
+  }
+
+  @Override
+  public int getAcceptedStateId() {
+    return Math.max(acceptor.getLog().getLastStateId(), queue.getStateId() - 1);
+  }
+
+  @Override
+  public boolean forwardValue(Value value) {
+    if (proposer == null || !proposer.isLeader()) {
+      return false;
+    }
+    for (Value command : value.getCommands()) {
+      queue.addTask(command);
+    }
+    return true;
+  }
+
+  @Override
+  public StateChunk readSnapshotChunk(long offset, int maxBytes) throws RemoteException {
+    try {
+      return Snapshot.readChunk(snapshotFile(), offset, Math.min(maxBytes, MAX_CHUNK_BYTES));
+    } catch (IOException e) {
+      throw new RemoteException("Could not read snapshot: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public SortedMap<Integer, Value> getChosenValues(int fromStateId, int maxValues) {
+    return acceptor.getChosen(fromStateId, Math.min(maxValues, MAX_CHOSEN_VALUES));
+  }
+
 
   // ------------------------------ Paxos Acceptor Handling ----------------------------------------
 
   @Override
   public GrantedMessage requestPermission(SuggestionId suggestionId, int stateId) {
+    delayForBenchmark();
     return acceptor.requestPermission(suggestionId, stateId, queue);
   }
 
   @Override
   public boolean suggestValue(SuggestionId suggestionId, Value value, int stateId) {
+    delayForBenchmark();
     return acceptor.suggestValue(suggestionId, value, stateId, queue);
   }
 
+  // Makes this acceptor answer like a distant replica, so that benchmarks can show how many slow
+  // replicas each quorum has to wait for
+  private static void delayForBenchmark() {
+    if (ACCEPTOR_DELAY_MILLIS > 0) {
+      try {
+        Thread.sleep(ACCEPTOR_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public boolean renewLease(SuggestionId leaderId) {
+    return acceptor.renewLease(leaderId);
+  }
+
+  @Override
+  public String readFromLeader(String key) throws RemoteException {
+    try {
+      if (proposer != null && proposer.holdsLease() && awaitReadBarrier(PHASE_TIMEOUT_MILLIS)) {
+        String value = readApplied(key);
+        if (proposer.holdsLease()) {
+          return value;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    throw new RemoteException("Server " + myId + " does not hold the leader lease");
+  }
+
   // ---------------------------- Paxos Learner Handling ------------------------------------------
 
+  // Consensus reports may arrive out of order while the Proposer has several state ids in flight,
+  // so they are held back until every earlier state id has been executed.
   @Override
-  public void reportConsensus(Value value, int stateId) {
-    if (stateId >= queue.getStateId()) {
-      queue.setStateId(stateId + 1);
+  public synchronized void reportConsensus(Value value, int stateId) {
+    int nextStateId = queue.getStateId();
+    committedValues.headMap(nextStateId).clear();
+    if (stateId < nextStateId) {
+      return; // Already executed
+    }
+    committedValues.put(stateId, value);
+    acceptor.reportChosen(stateId, value);
+    newestStateId = Math.max(newestStateId, stateId);
+    if (stateId >= nextStateId + Proposer.PIPELINE_WINDOW) {
+      // The missing state ids are no longer in flight, so this replica missed their reports.
+      startCatchUp();
     }
-    queue.dequeue(value);
-    executeValue(value);
+    executeCommitted();
   }
 
-  private synchronized void executeValue(Value value) {
-    if (value.getCommand() == Command.PUT) {
-      kvStore.put(value.getKey(), value.getValue());
-    } else if (value.getCommand() == Command.DELETE) {
-      kvStore.remove(value.getKey());
+  // Executes buffered consensus reports until the next missing state id, handing each value to the
+  // apply stage rather than applying it here.  Commands already executed at an earlier state id
+  // are dropped.  Called while holding this object's lock.
+  private void executeCommitted() {
+    int nextStateId = queue.getStateId();
+    Value committed;
+    while ((committed = committedValues.remove(nextStateId)) != null) {
+      wal.appendCommit(nextStateId, committed);
+      Value firstExecution = withoutExecuted(committed);
+      applyReconfigs(firstExecution);
+      applyStage.submit(nextStateId, firstExecution);
+      queue.setStateId(nextStateId + 1);
+      queue.dequeue(committed, nextStateId);
+      nextStateId++;
+      executedSinceSnapshot++;
     }
+    if (executedSinceSnapshot >= SNAPSHOT_INTERVAL && pendingSnapshots == 0) {
+      startSnapshot();
+    }
+  }
+
+  // ---------------------------- Catching up lagging replicas -------------------------------------
+
+  // Starts catching up from the most advanced replica, unless a catch-up is already running.
+  // Called while holding this object's lock.
+  private void startCatchUp() {
+    if (catchingUp) {
+      return;
+    }
+    catchingUp = true;
+    transferWorker.execute(this::catchUp);
+  }
+
+  // Fetches the values chosen since this replica's state id.  If the source has already compacted
+  // them, installs the source's snapshot first.
+  private void catchUp() {
+    try {
+      PaxosMessenger source = mostAdvancedReplica();
+      if (source == null) {
+        return;
+      }
+      StateTransfer transfer = new StateTransfer(source);
+      while (true) {
+        int stateId = queue.getStateId();
+        SortedMap<Integer, Value> chosen = transfer.fetchChosen(stateId);
+        if (chosen == null) {
+          File stagingFile = new File(DATA_DIR, "snapshot-" + myId + groupSuffix + ".transfer");
+          if (!transfer.fetchSnapshot(stagingFile)) {
+            return;
+          }
+          installSnapshot(Snapshot.read(stagingFile));
+          stagingFile.delete();
+        } else {
+          for (Map.Entry<Integer, Value> entry : chosen.entrySet()) {
+            reportConsensus(entry.getValue(), entry.getKey());
+          }
+        }
+        if (queue.getStateId() <= stateId) {
+          break; // The source has nothing more to send
+        }
+      }
+      System.out.println(currentTime() + ">> Caught up to state id " + (queue.getStateId() - 1));
+    } catch (IOException e) {
+      System.err.println(currentTime() + ">> State transfer failed: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        catchingUp = false;
+      }
+    }
+  }
+
+  // Returns the replica with the highest state id, if it is ahead of this one.
+  private PaxosMessenger mostAdvancedReplica() {
+    PaxosMessenger mostAdvanced = null;
+    int highestStateId = queue.getStateId();
+    for (Map.Entry<String, PaxosMessenger> replica : replicas.entrySet()) {
+      if (replica.getKey().equals(myId)) {
+        continue;
+      }
+      try {
+        int replicaStateId = replica.getValue().getStateId();
+        if (replicaStateId > highestStateId) {
+          highestStateId = replicaStateId;
+          mostAdvanced = replica.getValue();
+        }
+      } catch (RemoteException e) {
+        // This replica has crashed and will be excluded
+      }
+    }
+    return mostAdvanced;
+  }
+
+  // Saves a snapshot received from another replica as this replica's own, then replaces the store
+  // with it.  The write-ahead log is rolled first, so that recovery replays only values executed
+  // after the snapshot.
+  private void installSnapshot(Snapshot snapshot) throws IOException, InterruptedException {
+    int walSegment;
+    synchronized (this) {
+      if (snapshot.getStateId() <= queue.getStateId()) {
+        return;
+      }
+      walSegment = wal.roll();
+      acceptor.checkpoint(queue.getStateId());
+      pendingSnapshots++; // Keeps older snapshots from being started until the store is replaced
+    }
+    try {
+      snapshotWorker.submit(() -> {
+        Snapshot.write(snapshotFile(), snapshot.getStateId(), walSegment, snapshot.getMembers(),
+                snapshot.getExecutedIds(), snapshot.getEntries().entrySet(),
+                snapshot::getLastIncludedStateId);
+        return null;
+      }).get();
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        pendingSnapshots--;
+      }
+      throw new IOException(e.getCause().getMessage());
+    }
+    synchronized (this) {
+      if (snapshot.getStateId() > queue.getStateId()) {
+        applyStage.awaitSubmitted(); // So that no earlier value is applied to the new store
+        StorageEngine installed = newStorageEngine();
+        installed.putAll(snapshot.getEntries());
+        kvStore = installed;
+        applyStage.reset(snapshot.getStateId() - 1);
+        snapshotIncludedStateId = snapshot.getLastIncludedStateId();
+        installMembers(snapshot.getMembers());
+        executedIds = snapshot.getExecutedIds();
+        queue.setStateId(snapshot.getStateId());
+        committedValues.headMap(snapshot.getStateId()).clear();
+        executedSinceSnapshot = 0;
+      }
+      snapshotStateId = Math.max(snapshotStateId, snapshot.getStateId());
+      acceptor.truncate(snapshotStateId);
+      pendingSnapshots--;
+      executeCommitted();
+    }
+    wal.deleteSegmentsBefore(walSegment);
+    System.out.println(currentTime() + ">> Installed snapshot at state id " + (snapshot.getStateId() - 1));
+  }
+
+  // ------------------------------ Snapshots and log compaction -----------------------------------
+
+  // Rolls the write-ahead log at the current state id and writes the snapshot in the background.
+  // Called while holding this object's lock, so no value is executed until the log has rolled.
+  private void startSnapshot() {
+    int stateId = queue.getStateId();
+    int walSegment;
+    try {
+      walSegment = wal.roll();
+    } catch (IOException e) {
+      System.err.println(currentTime() + ">> Could not roll write-ahead log: " + e.getMessage());
+      return;
+    }
+    acceptor.checkpoint(stateId);
+    pendingSnapshots++;
+    executedSinceSnapshot = 0;
+    Map<String, String> members = new HashMap<>(replicaRegistrationData);
+    ExecutedIds executed = executedIds.copy();
+    snapshotWorker.execute(() -> writeSnapshot(stateId, walSegment, members, executed));
+  }
+
+  // The store keeps changing while it is copied, so the snapshot may hold values from after
+  // stateId, up to the last state id executed when the copy ends; replaying the commits from
+  // walSegment onwards in order brings every key up to date.  Values before stateId may still be
+  // on their way through the apply stage, so those are waited for first.
+  private void writeSnapshot(int stateId, int walSegment, Map<String, String> members,
+                             ExecutedIds executed) {
+    try {
+      applyStage.awaitApplied(stateId - 1);
+      Snapshot.write(snapshotFile(), stateId, walSegment, members, executed, kvStore,
+              this::lastExecutedStateId);
+      synchronized (this) {
+        snapshotStateId = Math.max(snapshotStateId, stateId);
+        acceptor.truncate(snapshotStateId); // Chosen values before the snapshot can now be dropped
+      }
+      wal.deleteSegmentsBefore(walSegment);
+      System.out.println(currentTime() + ">> Saved snapshot at state id " + (stateId - 1));
+    } catch (IOException e) {
+      System.err.println(currentTime() + ">> Could not save snapshot: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        pendingSnapshots--;
+      }
+    }
+  }
+
+  private static StorageEngine newStorageEngine() {
+    if (STORAGE == Storage.STRIPED) {
+      return new StripedStorageEngine(STORAGE_STRIPES);
+    }
+    return new ConcurrentStorageEngine();
+  }
+
+  private File snapshotFile() {
+    return new File(DATA_DIR, "snapshot-" + myId + groupSuffix + ".snap");
+  }
+
+  // Applies a value directly, while recovering before the apply stage takes over
+  private void executeValue(Value value) {
+    Value firstExecution = withoutExecuted(value);
+    applyReconfigs(firstExecution);
+    for (Value command : firstExecution.getCommands()) {
+      applyCommand(command);
+    }
+  }
+
+  // Records the ids of a chosen value's commands, and returns the value without those that were
+  // already executed.  A value whose commands were all executed before becomes a NO_OP.
+  private Value withoutExecuted(Value value) {
+    List<Value> commands = new ArrayList<>();
+    for (Value command : value.getCommands()) {
+      if (command.getOrigin() == null || executedIds.add(command.getOrigin(), command.getSeq())) {
+        commands.add(command);
+      }
+    }
+    if (commands.size() == value.getCommands().size()) {
+      return value;
+    }
+    return commands.isEmpty() ? new Value() : new Value(commands);
+  }
+
+  private void applyCommand(Value command) {
+    if (command.getCommand() == Command.PUT) {
+      kvStore.put(command.getKey(), command.getValue());
+    } else if (command.getCommand() == Command.DELETE) {
+      kvStore.remove(command.getKey());
+    }
+  }
+
+  // Changes membership for each RECONFIG command in an executed value.  Values are executed in
+  // state id order, so every replica sees the same membership at each state id.  Each change is
+  // checked again against the membership it is applied to, since retried and concurrent changes
+  // may each have been checked against an older one when submitted.  A change that would leave
+  // quorums that miss each other is skipped, on every replica alike, and its submitter told why.
+  private void applyReconfigs(Value value) {
+    for (Value command : value.getCommands()) {
+      if (command.getCommand() != Command.RECONFIG) {
+        continue;
+      }
+      String refusal = reconfigRefusal(command.getKey(), command.getValue());
+      if (refusal == null) {
+        changeMember(command.getKey(), command.getValue());
+        continue;
+      }
+      System.out.println(currentTime() + ">> Skipped change to server " + command.getKey() + ": "
+              + refusal);
+      if (origin.equals(command.getOrigin())) {
+        refusedReconfigs.put(command, refusal);
+      }
+    }
+  }
+
+  // Replaces the membership with the one saved in an installed snapshot
+  private void installMembers(Map<String, String> members) {
+    for (String id : replicaRegistrationData.keySet()) {
+      if (!members.containsKey(id)) {
+        changeMember(id, null);
+      }
+    }
+    for (Map.Entry<String, String> member : members.entrySet()) {
+      changeMember(member.getKey(), member.getValue());
+    }
+  }
+
+  // Adds a member, or moves it to a new host, or removes it if the host is null.  Once this server
+  // is running, it connects to new members straight away.
+  private void changeMember(String id, String host) {
+    if (host == null) {
+      if (replicaRegistrationData.remove(id) == null) {
+        return;
+      }
+      replicas.remove(id);
+    } else {
+      if (host.equals(replicaRegistrationData.put(id, host))) {
+        return;
+      }
+      if (connecting && id.equals(myId)) {
+        replicas.put(myId, this);
+      } else if (connecting) {
+        dispatchWorkers.execute(() -> connectReplica(id, host));
+      }
+    }
+    System.out.println(currentTime() + ">> " + (host == null ? "Removed" : "Added") + " server "
+            + id + ": " + replicaRegistrationData.size() + " members, quorums of " + phase1Quorum()
+            + " and " + phase2Quorum());
+  }
+
+  // Reads a key once every value executed so far has been applied to the store.  After loading a
+  // fuzzy snapshot, reads also wait until this replica has executed past every state id the
+  // snapshot may hold, since until then the store may not match any prefix of the chosen values.
+  private String readApplied(String key) {
+    try {
+      int included = snapshotIncludedStateId;
+      if (queue.getStateId() <= included) {
+        synchronized (this) {
+          startCatchUp();
+        }
+        if (!queue.awaitStateId(included + 1, PHASE_TIMEOUT_MILLIS)) {
+          throw new IllegalStateException("Server " + myId + " has executed up to state id "
+                  + (queue.getStateId() - 1) + " of the " + included + " in its snapshot");
+        }
+      }
+      applyStage.awaitSubmitted();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return kvStore.get(key);
+  }
+
+  // Executing a value and advancing the state id happen together under this object's lock
+  private synchronized int lastExecutedStateId() {
+    return queue.getStateId() - 1;
   }
   // ------------------------------- Helper functions and classes ----------------------------------
 
+  private static int countPermission(List<GrantedMessage> responses, GrantedMessage.Permission permission) {
+    int count = 0;
+    for (GrantedMessage response : responses) {
+      if (response != null && response.getPermission() == permission) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static int countResponded(List<Integer> responses) {
+    int count = 0;
+    for (Integer response : responses) {
+      if (response != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static int countAccepted(List<Boolean> responses) {
+    int count = 0;
+    for (Boolean response : responses) {
+      if (response != null && response) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static ExecutorService newSingleWorker(String name) {
+    return Executors.newSingleThreadExecutor(task -> {
+      Thread worker = new Thread(task, name);
+      worker.setDaemon(true);
+      return worker;
+    });
+  }
+
+  private static ExecutorService newDispatchWorkers() {
+    return Executors.newCachedThreadPool(task -> {
+      Thread worker = new Thread(task, "paxos-dispatch");
+      worker.setDaemon(true);
+      return worker;
+    });
+  }
+
   private String currentTime() {
-    return dateFormatter.format(System.currentTimeMillis());
+    String time = dateFormatter.format(System.currentTimeMillis());
+    return group == 0 ? time : time + " group " + group;
+  }
+
+  /**
+   * How GET requests are served.  LOCAL reads this replica's store, which may be stale.  LEASE reads
+   * the store of the replica holding the leader lease, and QUORUM reads this replica's store once
+   * it has caught up to a read index; both are linearizable.
+   */
+  private enum ReadMode {
+    LOCAL, LEASE, QUORUM
+  }
+
+  private enum Storage {
+    CONCURRENT, STRIPED
   }
 }
@@ -0,0 +1,222 @@
+package com.project4.server.kvStore;
+
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Key Value store whose keys are split over several independent Paxos groups, set by
+ * kvstore.shards.  Every group is an RMIKeyValueStore with its own proposer, acceptor, write-ahead
+ * log and leader, and every server process runs a replica of every group, so operations on keys in
+ * different groups are ordered and executed in parallel.  Each key belongs to the group its hash
+ * selects, so an operation on one key is still linearizable within its group.
+ * <p>
+ * Each group numbers its own state ids, so a session token holds one state id per group, for
+ * example "0.17.0.9" with four shards.  A write's token sets only its own group's position, and a
+ * client merges them position by position.  A get waits for the position of the key's group, so a
+ * client reads its own writes in every group.
+ * <p>
+ * Every group has a replica on every server, so a membership change is made in each group in turn.
+ * It is checked against every group first, so a change one group would refuse changes none.  A
+ * change that is not executed in some group after others have executed it cannot be rolled back,
+ * since members may already have acted on it, so it is reported with the groups it was applied to.
+ * Groups whose membership already reflects a change are skipped, so repeating the change finishes
+ * it in the remaining groups.
+ */
+public class ShardedKeyValueStore implements KeyValueStore {
+  private static final int SHARDS = Integer.getInteger("kvstore.shards", 1);
+  private static final int STATE_ID_DIGITS = 10; // Digits in the largest int
+
+  private RMIKeyValueStore[] groups;
+
+  /**
+   * Creates the store for this server: a single RMIKeyValueStore, unless kvstore.shards is more
+   * than 1.
+   */
+  public static KeyValueStore create() throws RemoteException {
+    if (SHARDS < 1) {
+      throw new IllegalArgumentException("Received kvstore.shards = " + SHARDS
+              + ". There must be at least 1 shard.");
+    }
+    return SHARDS == 1 ? new RMIKeyValueStore() : new ShardedKeyValueStore(SHARDS);
+  }
+
+  // Returns the length of the longest session token this server's store hands out
+  public static int maxSessionTokenLength() {
+    return Math.max(1, SHARDS) * (STATE_ID_DIGITS + 1) - 1;
+  }
+
+  public ShardedKeyValueStore(int shards) throws RemoteException {
+    groups = new RMIKeyValueStore[shards];
+    for (int i = 0; i < shards; i++) {
+      groups[i] = new RMIKeyValueStore(i);
+    }
+  }
+
+  @Override
+  public void run(String myID) throws RemoteException, MalformedURLException {
+    for (RMIKeyValueStore group : groups) {
+      group.run(myID);
+    }
+  }
+
+  @Override
+  public int put(String key, String value) {
+    return groups[groupOf(key)].put(key, value);
+  }
+
+  @Override
+  public CompletableFuture<Integer> putAsync(String key, String value) {
+    return groups[groupOf(key)].putAsync(key, value);
+  }
+
+  @Override
+  public String get(String key) {
+    return groups[groupOf(key)].get(key);
+  }
+
+  // A token of "0" is accepted as well, from a client that has not written yet
+  @Override
+  public String get(String key, String sessionToken, int maxLag) {
+    int group = groupOf(key);
+    String[] stateIds = sessionToken.split("\\.", -1);
+    if (stateIds.length == 1 && sessionToken.equals("0")) {
+      return groups[group].get(key, 0, maxLag);
+    }
+    if (stateIds.length != groups.length) {
+      throw new IllegalArgumentException("Received session token = " + sessionToken
+              + ". A token must hold one state id for each of the " + groups.length + " shards.");
+    }
+    int required;
+    try {
+      required = Integer.parseInt(stateIds[group]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Received session token = " + sessionToken
+              + ". A token's state ids must be integers.");
+    }
+    return groups[group].get(key, required, maxLag);
+  }
+
+  @Override
+  public String sessionToken(String key, int stateId) {
+    int group = groupOf(key);
+    StringBuilder token = new StringBuilder();
+    for (int i = 0; i < groups.length; i++) {
+      if (i > 0) {
+        token.append('.');
+      }
+      token.append(i == group ? stateId : 0);
+    }
+    return token.toString();
+  }
+
+  @Override
+  public int delete(String key) {
+    return groups[groupOf(key)].delete(key);
+  }
+
+  @Override
+  public CompletableFuture<Integer> deleteAsync(String key) {
+    return groups[groupOf(key)].deleteAsync(key);
+  }
+
+  /**
+   * Adds a server to, or moves a member to a new host in, every group that does not already have
+   * it at that host.
+   *
+   * @return the state id the change was executed at in the last group it was applied to, or -1 if
+   *         it was not executed in time in any group
+   * @throws IllegalStateException if the change was executed in some groups but not in others
+   */
+  @Override
+  public int addServer(String id, String host) {
+    List<Integer> pending = new ArrayList<>();
+    for (int group = 0; group < groups.length; group++) {
+      groups[group].checkAddServer(id, host);
+      if (!host.equals(groups[group].getMemberHost(id))) {
+        pending.add(group);
+      }
+    }
+    if (pending.isEmpty()) {
+      return groups[0].addServer(id, host); // Already applied everywhere; confirm it in group 0
+    }
+    return reconfigure(id, pending, group -> groups[group].addServer(id, host));
+  }
+
+  /**
+   * Removes a server from every group it is still a member of.
+   *
+   * @return the state id the change was executed at in the last group it was applied to, or -1 if
+   *         it was not executed in time in any group
+   * @throws IllegalStateException if the change was executed in some groups but not in others
+   */
+  @Override
+  public int removeServer(String id) {
+    List<Integer> pending = new ArrayList<>();
+    for (int group = 0; group < groups.length; group++) {
+      if (groups[group].getMemberHost(id) != null) {
+        groups[group].checkRemoveServer(id);
+        pending.add(group);
+      }
+    }
+    if (pending.isEmpty()) {
+      return groups[0].removeServer(id); // Already applied everywhere; confirm it in group 0
+    }
+    return reconfigure(id, pending, group -> groups[group].removeServer(id));
+  }
+
+  // Applies a checked membership change to each pending group in turn, stopping at the first group
+  // that does not execute it
+  private int reconfigure(String id, List<Integer> pending, IntUnaryOperator change) {
+    List<Integer> applied = new ArrayList<>();
+    int stateId = -1;
+    for (int group : pending) {
+      try {
+        stateId = change.applyAsInt(group);
+      } catch (IllegalArgumentException e) {
+        if (applied.isEmpty()) {
+          throw e;
+        }
+        stateId = -1; // Membership changed since the check
+      }
+      if (stateId < 0) {
+        if (applied.isEmpty()) {
+          return -1;
+        }
+        List<Integer> remaining = new ArrayList<>(pending);
+        remaining.removeAll(applied);
+        throw new IllegalStateException("The change to server " + id + " was applied to groups "
+                + applied + " but not to groups " + remaining + "; repeat it to finish it.");
+      }
+      applied.add(group);
+    }
+    return stateId;
+  }
+
+  // The groups elect their leaders independently, so each may be led by a different server
+  @Override
+  public List<String> getLeaderIds() {
+    List<String> leaderIds = new ArrayList<>();
+    for (RMIKeyValueStore group : groups) {
+      leaderIds.add(group.getLeaderId());
+    }
+    return leaderIds;
+  }
+
+  // Counts the state ids executed over every group
+  @Override
+  public int getStateId() {
+    int executed = 0;
+    for (RMIKeyValueStore group : groups) {
+      executed += group.getStateId() - 1;
+    }
+    return executed + 1;
+  }
+
+  private int groupOf(String key) {
+    return Math.floorMod(key.hashCode(), groups.length);
+  }
+}
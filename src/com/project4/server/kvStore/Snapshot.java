@@ -0,0 +1,182 @@
+package com.project4.server.kvStore;
+
+import com.project4.server.kvStore.paxos.StateChunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of the KV store, saved to disk so that the write-ahead log before it can be deleted.
+ * A snapshot records the state id it was started at and the first write-ahead log segment written
+ * after it was started.  Every state id below that one is reflected in the snapshot.
+ * <p>
+ * Snapshots are written while the store keeps executing values, so they are fuzzy: they may also
+ * reflect some later state ids, up to the last included state id recorded after the copy.  Until a
+ * replica has executed past that state id, its store may hold a later write to one key but not an
+ * earlier write to another, which no client ever saw.  Replaying the write-ahead log from the
+ * snapshot's segment, or the chosen values a StateTransfer fetches, re-executes those values in
+ * order, which leaves the store exactly as it was; replicas do not serve reads until then.
+ * <p>
+ * A snapshot also records the cluster's membership and the ids of the executed client commands at
+ * its state id, since the RECONFIG values that changed the membership and the values that carried
+ * the commands are compacted away with the log.
+ */
+public class Snapshot {
+  private static final int MAGIC = 0x4b565346;
+
+  private final int stateId;
+  private final int walSegment;
+  private final int lastIncludedStateId;
+  private final Map<String, String> members;
+  private final ExecutedIds executedIds;
+  private final Map<String, String> entries;
+
+  private Snapshot(int stateId, int walSegment, int lastIncludedStateId, Map<String, String> members,
+                   ExecutedIds executedIds, Map<String, String> entries) {
+    this.stateId = stateId;
+    this.walSegment = walSegment;
+    this.lastIncludedStateId = lastIncludedStateId;
+    this.members = members;
+    this.executedIds = executedIds;
+    this.entries = entries;
+  }
+
+  public int getStateId() {
+    return stateId;
+  }
+
+  public int getWalSegment() {
+    return walSegment;
+  }
+
+  // Returns the highest state id whose writes the snapshot may hold
+  public int getLastIncludedStateId() {
+    return lastIncludedStateId;
+  }
+
+  // Returns each member's host by server id
+  public Map<String, String> getMembers() {
+    return members;
+  }
+
+  ExecutedIds getExecutedIds() {
+    return executedIds;
+  }
+
+  public Map<String, String> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Writes the store to a temporary file, syncs it, and then moves it over the snapshot file, so
+   * that a crash never leaves a partial snapshot behind.  The last included state id is asked for
+   * once the store has been copied.
+   */
+  static void write(File file, int stateId, int walSegment, Map<String, String> members,
+                    ExecutedIds executedIds, Iterable<Map.Entry<String, String>> store,
+                    IntSupplier lastIncludedStateId) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+      CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      out.writeInt(MAGIC);
+      out.writeInt(stateId);
+      out.writeInt(walSegment);
+      out.writeInt(members.size());
+      for (Map.Entry<String, String> member : members.entrySet()) {
+        out.writeUTF(member.getKey());
+        out.writeUTF(member.getValue());
+      }
+      executedIds.write(out);
+      for (Map.Entry<String, String> entry : store) {
+        out.writeBoolean(true);
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
+      out.writeBoolean(false);
+      out.writeInt(lastIncludedStateId.getAsInt());
+      out.flush();
+      long checksum = checked.getChecksum().getValue();
+      out.writeLong(checksum);
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Reads part of a snapshot file, to be sent to a replica that has fallen behind.
+   *
+   * @return the chunk starting at the given offset, or null if there is no snapshot file
+   */
+  public static StateChunk readChunk(File file, long offset, int maxBytes) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      in.seek(4); // Skip the magic number
+      int stateId = in.readInt();
+      long length = in.length();
+      long start = Math.max(0, Math.min(offset, length));
+      byte[] data = new byte[(int) Math.min(maxBytes, length - start)];
+      in.seek(start);
+      in.readFully(data);
+      return new StateChunk(stateId, start, length, data);
+    }
+  }
+
+  /**
+   * Reads a snapshot file.
+   *
+   * @return the snapshot, or null if there is no snapshot file
+   * @throws IOException if the file cannot be read or is corrupt
+   */
+  public static Snapshot read(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    try (FileInputStream fileIn = new FileInputStream(file)) {
+      CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fileIn), new CRC32());
+      DataInputStream in = new DataInputStream(checked);
+      int magic = in.readInt();
+      if (magic != MAGIC) {
+        throw new IOException("Not a snapshot file: " + file);
+      }
+      int stateId = in.readInt();
+      int walSegment = in.readInt();
+      Map<String, String> members = new HashMap<>();
+      for (int i = in.readInt(); i > 0; i--) {
+        String id = in.readUTF();
+        members.put(id, in.readUTF());
+      }
+      ExecutedIds executedIds = ExecutedIds.read(in);
+      Map<String, String> entries = new HashMap<>();
+      while (in.readBoolean()) {
+        String key = in.readUTF();
+        entries.put(key, in.readUTF());
+      }
+      int lastIncludedStateId = in.readInt();
+      long checksum = checked.getChecksum().getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Snapshot file failed its checksum: " + file);
+      }
+      return new Snapshot(stateId, walSegment, lastIncludedStateId, members, executedIds, entries);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.project4.server.kvStore;
+
+import com.project4.server.kvStore.paxos.PaxosMessenger;
+import com.project4.server.kvStore.paxos.StateChunk;
+import com.project4.server.kvStore.paxos.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.rmi.RemoteException;
+import java.util.SortedMap;
+
+/**
+ * Pulls state from an up-to-date replica into one that has fallen behind.  If the source has
+ * already compacted the values the receiver is missing, its snapshot is streamed in chunks into a
+ * staging file.  Each chunk is checked against its CRC32 as it arrives, and the whole file is
+ * checked again when it is read back as a Snapshot.  Values chosen since the snapshot are then
+ * fetched in batches and executed as if their consensus reports had just arrived.
+ * <p>
+ * The receiver keeps serving while a transfer runs, and transfers are throttled to
+ * kvstore.transfer.bytesPerSecond, so that a replica catching up on a large store does not crowd out
+ * Paxos messages between the other replicas.
+ */
+public class StateTransfer {
+  private static final int CHUNK_BYTES = Integer.getInteger("kvstore.transfer.chunkBytes", 65536);
+  private static final long BYTES_PER_SECOND = Long.getLong("kvstore.transfer.bytesPerSecond", 4194304);
+  private static final int VALUES_PER_REQUEST = 256;
+
+  private PaxosMessenger source;
+  private long startedAt = System.currentTimeMillis();
+  private long bytesTransferred = 0;
+
+  public StateTransfer(PaxosMessenger source) {
+    this.source = source;
+  }
+
+  /**
+   * Copies the source's snapshot into the staging file, one chunk at a time.
+   *
+   * @param stagingFile file to write the snapshot to; any previous contents are discarded
+   * @return true if the snapshot was copied, or false if the source has no snapshot
+   * @throws IOException if the source cannot be reached or a chunk fails its checksum
+   */
+  public boolean fetchSnapshot(File stagingFile) throws IOException, InterruptedException {
+    try (RandomAccessFile out = new RandomAccessFile(stagingFile, "rw")) {
+      out.setLength(0);
+      int snapshotStateId = -1;
+      long offset = 0;
+      while (true) {
+        StateChunk chunk = source.readSnapshotChunk(offset, CHUNK_BYTES);
+        if (chunk == null) {
+          return false;
+        }
+        if (chunk.getSnapshotStateId() != snapshotStateId) {
+          if (offset > 0) {
+            // The source saved a newer snapshot, so start again from the beginning of that one
+            out.setLength(0);
+            offset = 0;
+            snapshotStateId = -1;
+            continue;
+          }
+          snapshotStateId = chunk.getSnapshotStateId();
+        }
+        if (!chunk.isIntact() || chunk.getOffset() != offset) {
+          throw new IOException("Snapshot chunk at offset " + offset + " failed its checksum");
+        }
+        byte[] data = chunk.getData();
+        if (data.length == 0 && offset < chunk.getSnapshotLength()) {
+          throw new IOException("Snapshot ended early at offset " + offset);
+        }
+        out.seek(offset);
+        out.write(data);
+        offset += data.length;
+        throttle(data.length);
+        if (offset >= chunk.getSnapshotLength()) {
+          break;
+        }
+      }
+      out.getFD().sync();
+    }
+    return true;
+  }
+
+  /**
+   * Fetches the values the source knows were chosen, starting at the given state id.
+   *
+   * @param fromStateId first state id to fetch
+   * @return chosen values by state id, with no gaps, or null if the source has compacted the given
+   *         state id into its snapshot
+   */
+  public SortedMap<Integer, Value> fetchChosen(int fromStateId) throws RemoteException, InterruptedException {
+    SortedMap<Integer, Value> chosen = source.getChosenValues(fromStateId, VALUES_PER_REQUEST);
+    if (chosen != null) {
+      long bytes = 0;
+      for (Value value : chosen.values()) {
+        bytes += value.estimateSize();
+      }
+      throttle(bytes);
+    }
+    return chosen;
+  }
+
+  // Sleeps until the transfer's average rate has fallen back to the configured limit.
+  private void throttle(long bytes) throws InterruptedException {
+    bytesTransferred += bytes;
+    long dueMillis = bytesTransferred * 1000 / BYTES_PER_SECOND;
+    long elapsedMillis = System.currentTimeMillis() - startedAt;
+    if (dueMillis > elapsedMillis) {
+      Thread.sleep(dueMillis - elapsedMillis);
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.project4.server.kvStore;
+
+import java.util.Map;
+
+/**
+ * Holds the entries of the KV store.  The learner applies chosen values one at a time while any
+ * number of server threads read, so an engine must let reads run alongside writes without a
+ * global lock.  Iterating over an engine is weakly consistent: it sees every entry that was
+ * unchanged while it ran, and may or may not see the writes made meanwhile, which is all a
+ * snapshot needs.  See Snapshot.
+ */
+public interface StorageEngine extends Iterable<Map.Entry<String, String>> {
+
+  /**
+   * @return the value associated with this key, or null if none
+   */
+  String get(String key);
+
+  void put(String key, String value);
+
+  void remove(String key);
+
+  void putAll(Map<String, String> entries);
+
+  int size();
+}
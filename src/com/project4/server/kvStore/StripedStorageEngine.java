@@ -0,0 +1,137 @@
+package com.project4.server.kvStore;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage engine that splits the keys over plain HashMaps by hash, each guarded by its own
+ * read-write lock.  Readers only share a lock with the writer when they touch the same stripe, and
+ * never exclude one another.  Iteration copies one stripe at a time under its read lock.
+ */
+public class StripedStorageEngine implements StorageEngine {
+  private List<Map<String, String>> stripes;
+  private ReadWriteLock[] locks;
+  private int mask;
+
+  /**
+   * @param stripes number of stripes, rounded up to a power of two
+   */
+  public StripedStorageEngine(int stripes) {
+    if (stripes < 1) {
+      throw new IllegalArgumentException("Received stripes = " + stripes
+              + ". A storage engine needs at least one stripe.");
+    }
+    int count = Integer.highestOneBit(stripes);
+    if (count < stripes) {
+      count <<= 1;
+    }
+    this.stripes = new ArrayList<>(count);
+    this.locks = new ReadWriteLock[count];
+    for (int i = 0; i < count; i++) {
+      this.stripes.add(new HashMap<>());
+      this.locks[i] = new ReentrantReadWriteLock();
+    }
+    this.mask = count - 1;
+  }
+
+  // Spreads the hash's high bits into the low bits that pick a stripe, as HashMap does
+  private int stripeOf(String key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  @Override
+  public String get(String key) {
+    int stripe = stripeOf(key);
+    locks[stripe].readLock().lock();
+    try {
+      return stripes.get(stripe).get(key);
+    } finally {
+      locks[stripe].readLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(String key, String value) {
+    int stripe = stripeOf(key);
+    locks[stripe].writeLock().lock();
+    try {
+      stripes.get(stripe).put(key, value);
+    } finally {
+      locks[stripe].writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    int stripe = stripeOf(key);
+    locks[stripe].writeLock().lock();
+    try {
+      stripes.get(stripe).remove(key);
+    } finally {
+      locks[stripe].writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void putAll(Map<String, String> entries) {
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < stripes.size(); i++) {
+      locks[i].readLock().lock();
+      try {
+        size += stripes.get(i).size();
+      } finally {
+        locks[i].readLock().unlock();
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> iterator() {
+    return new Iterator<Map.Entry<String, String>>() {
+      private int nextStripe = 0;
+      private Iterator<Map.Entry<String, String>> current = copyOf(nextStripe++);
+
+      @Override
+      public boolean hasNext() {
+        while (!current.hasNext() && nextStripe < stripes.size()) {
+          current = copyOf(nextStripe++);
+        }
+        return current.hasNext();
+      }
+
+      @Override
+      public Map.Entry<String, String> next() {
+        hasNext();
+        return current.next();
+      }
+    };
+  }
+
+  private Iterator<Map.Entry<String, String>> copyOf(int stripe) {
+    List<Map.Entry<String, String>> copy = new ArrayList<>();
+    locks[stripe].readLock().lock();
+    try {
+      for (Map.Entry<String, String> entry : stripes.get(stripe).entrySet()) {
+        copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+      }
+    } finally {
+      locks[stripe].readLock().unlock();
+    }
+    return copy.iterator();
+  }
+}
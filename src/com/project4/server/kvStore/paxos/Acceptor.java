@@ -1,84 +1,182 @@
 package com.project4.server.kvStore.paxos;
 
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Represents a Paxos Acceptor.  Messages from Proposers should be handled by this class.  The
- * Acceptor also stores the last accepted state id to support multi-paxos - it will clear its
- * previous accepted value when it sees that a message is concerned with a more recent state id.
+ * Acceptor keeps an AcceptorLog of its accepted suggestion id and value for every state id, so that
+ * a Proposer can keep several state ids in flight at once.  Learners mark entries as chosen, and
+ * truncate the log once entries are covered by a snapshot.  Chosen entries are kept until then so
+ * that they can be sent to replicas that have fallen behind.
+ * <p>
+ * A permission grant is not tied to a single state id: once a Proposer is granted permission, it
+ * may keep suggesting values for later state ids until the Acceptor grants a higher suggestion id.
+ * The promised suggestion id is therefore held once for the whole log.  A Proposer asking from a
+ * state id the Acceptor has already compacted away is refused with a STATE NACK, so that it catches
+ * up from a snapshot before asking again.
+ * <p>
+ * Every grant and every accepted value is written to the replica's WriteAheadLog, and the Acceptor
+ * only responds once the record is durable.  Records are written while holding the Acceptor's lock,
+ * but synced after releasing it, so concurrent responses can share a single sync.
+ * <p>
+ * If leases are enabled, the Acceptor grants the leader a lease each time it renews its promise,
+ * and refuses permission to every other server until the lease runs out.  The lease is timed with
+ * the Acceptor's own clock, from when the renewal arrives, so it always outlasts the leader's view
+ * of it.  Leases are not logged, so a restarted Acceptor refuses every server for one lease period.
  */
 public class Acceptor {
   private SuggestionId lastPermittedId;
-  private SuggestionId lastAcceptedId;
-  private Value lastAcceptedValue;
-  private int lastAcceptedStateId;
+  private AcceptorLog log;
+  private WriteAheadLog wal;
+  private long leaseNanos; // Length of a leader lease, or 0 if leases are disabled
+  private String leaseHolder; // Server id holding the lease, or null if no server may be granted
+  private long leaseExpiresAt; // System.nanoTime() when the lease runs out
 
-  public Acceptor() {
+  public Acceptor(WriteAheadLog wal, long leaseMillis) {
     this.lastPermittedId = new SuggestionId(0, "");
-    this.lastAcceptedId = new SuggestionId(0, "");
-    this.lastAcceptedValue = null;
-    this.lastAcceptedStateId = 0;
+    this.log = new AcceptorLog();
+    this.wal = wal;
+    this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    this.leaseHolder = null;
+    this.leaseExpiresAt = System.nanoTime() + leaseNanos;
   }
 
   public synchronized SuggestionId getLastPermittedId() {
     return lastPermittedId;
   }
 
-  public synchronized SuggestionId getLastAcceptedId() {
-    return lastAcceptedId;
+  public synchronized void setLastPermittedId(SuggestionId lastPermittedId) {
+    this.lastPermittedId = lastPermittedId;
   }
 
-  public synchronized Value getLastAcceptedValue() {
-    return lastAcceptedValue;
+  public AcceptorLog getLog() {
+    return log;
   }
 
-  public synchronized int getLastAcceptedStateId() {
-    return lastAcceptedStateId;
+  public GrantedMessage requestPermission(SuggestionId suggestionId, int senderStateId, ProposalQueue queue) {
+    GrantedMessage response;
+    long walPosition = -1;
+    synchronized (this) {
+      if (senderStateId < log.getFirstStateId()) {
+        // The sender's state ids have been compacted away, so it needs this replica's snapshot
+        return new GrantedMessage(GrantedMessage.Permission.STATE_NACK, lastPermittedId);
+      }
+      if (senderStateId < queue.getStateId()) {
+        return new GrantedMessage(GrantedMessage.Permission.NACK, lastPermittedId);
+      }
+      if (suggestionId.compareTo(lastPermittedId) < 0 || leasedToOtherServer(suggestionId)) {
+        return new GrantedMessage(GrantedMessage.Permission.NACK, lastPermittedId);
+      }
+      if (suggestionId.compareTo(lastPermittedId) > 0) {
+        walPosition = wal.appendPromise(suggestionId);
+      }
+      lastPermittedId = suggestionId;
+      // Report everything accepted from this state id onwards, so the new leader can finish it
+      TreeMap<Integer, SuggestionId> acceptedIds = new TreeMap<>();
+      TreeMap<Integer, Value> acceptedValues = new TreeMap<>();
+      for (int stateId = senderStateId; stateId <= log.getLastStateId(); stateId++) {
+        SuggestionId acceptedId = log.getAcceptedId(stateId);
+        if (acceptedId != null) {
+          acceptedIds.put(stateId, acceptedId);
+          acceptedValues.put(stateId, log.getAcceptedValue(stateId));
+        }
+      }
+      response = new GrantedMessage(GrantedMessage.Permission.GRANTED, acceptedIds, acceptedValues);
+    }
+    if (walPosition >= 0) {
+      wal.sync(walPosition);
+    }
+    return response;
   }
 
-  public synchronized void setLastPermittedId(SuggestionId lastPermittedId) {
-    this.lastPermittedId = lastPermittedId;
+  public boolean suggestValue(SuggestionId suggestionId, Value value, int senderStateId, ProposalQueue queue) {
+    long walPosition;
+    synchronized (this) {
+      if (senderStateId < queue.getStateId() || suggestionId.compareTo(lastPermittedId) < 0) {
+        return false;
+      }
+      lastPermittedId = suggestionId;
+      log.accept(senderStateId, suggestionId, value);
+      walPosition = wal.appendAccept(senderStateId, suggestionId, value);
+    }
+    wal.sync(walPosition);
+    return true;
   }
 
-  public synchronized void setLastAcceptedId(SuggestionId lastAcceptedId) {
-    this.lastAcceptedId = lastAcceptedId;
+  /**
+   * Extends the leader lease for the server holding the given suggestion id, if it is still the
+   * suggestion id this Acceptor has promised.
+   *
+   * @return true if the lease was granted
+   */
+  public synchronized boolean renewLease(SuggestionId suggestionId) {
+    if (leaseNanos == 0 || suggestionId.compareTo(lastPermittedId) != 0) {
+      return false;
+    }
+    leaseHolder = suggestionId.getServerId();
+    leaseExpiresAt = System.nanoTime() + leaseNanos;
+    return true;
   }
 
-  public synchronized void setLastAcceptedValue(Value lastAcceptedValue) {
-    this.lastAcceptedValue = lastAcceptedValue;
+  private boolean leasedToOtherServer(SuggestionId suggestionId) {
+    return leaseNanos > 0 && System.nanoTime() - leaseExpiresAt < 0
+            && !suggestionId.getServerId().equals(leaseHolder);
   }
 
-  public synchronized void setLastAcceptedStateId(int lastAcceptedStateId) {
-    this.lastAcceptedStateId = lastAcceptedStateId;
+  /**
+   * Writes the Acceptor's promise and every accepted value from the given state id onwards to the
+   * write-ahead log, so that earlier write-ahead log segments are no longer needed to restore them.
+   */
+  public void checkpoint(int fromStateId) {
+    long walPosition;
+    synchronized (this) {
+      walPosition = wal.appendPromise(lastPermittedId);
+      int firstStateId = Math.max(fromStateId, log.getFirstStateId());
+      for (int stateId = firstStateId; stateId <= log.getLastStateId(); stateId++) {
+        SuggestionId acceptedId = log.getAcceptedId(stateId);
+        if (acceptedId != null) {
+          walPosition = wal.appendAccept(stateId, acceptedId, log.getAcceptedValue(stateId));
+        }
+      }
+    }
+    wal.sync(walPosition);
   }
 
-  public GrantedMessage requestPermission(SuggestionId suggestionId, int senderStateId, ProposalQueue queue) {
-    if (senderStateId < queue.getStateId()) {
-      return new GrantedMessage(GrantedMessage.Permission.NACK, null, null);
-    }
-    if (senderStateId > queue.getStateId()) {
-      // TODO: In a fully consistent version, the accepter will need to catch up its data
-      queue.setStateId(senderStateId);
-    }
-    if (senderStateId > getLastAcceptedStateId()) {
-      setLastAcceptedValue(null); // This clears old values from a previous Paxos iteration for multi-Paxos
+  // Called while replaying the write-ahead log, before the replica starts serving.
+  public synchronized void restorePromise(SuggestionId promisedId) {
+    if (promisedId.compareTo(lastPermittedId) > 0) {
+      lastPermittedId = promisedId;
     }
-    if (suggestionId.compareTo(getLastPermittedId()) >= 0) {
-      setLastPermittedId(suggestionId);
-      return new GrantedMessage(GrantedMessage.Permission.GRANTED,
-              getLastAcceptedId(), getLastAcceptedValue());
-    }
-    return new GrantedMessage(GrantedMessage.Permission.NACK, null, null);
   }
 
-  public boolean suggestValue(SuggestionId suggestionId, Value value, int senderStateId, ProposalQueue queue) {
-    if (senderStateId < queue.getStateId()) {
-      return false;
+  // Called while replaying the write-ahead log, before the replica starts serving.
+  public synchronized void restoreAccepted(int stateId, SuggestionId suggestionId, Value value) {
+    restorePromise(suggestionId);
+    log.accept(stateId, suggestionId, value);
+  }
+
+  // Returns chosen values from the given state id up to the first gap, or null if the state id has
+  // already been truncated from the log.
+  public synchronized SortedMap<Integer, Value> getChosen(int fromStateId, int maxValues) {
+    if (fromStateId < log.getFirstStateId()) {
+      return null;
     }
-    if (suggestionId.compareTo(getLastPermittedId()) >= 0) {
-      setLastAcceptedId(suggestionId);
-      setLastAcceptedValue(value);
-      setLastAcceptedStateId(senderStateId);
-      return true;
+    TreeMap<Integer, Value> chosenValues = new TreeMap<>();
+    for (int stateId = fromStateId; log.isChosen(stateId) && chosenValues.size() < maxValues; stateId++) {
+      chosenValues.put(stateId, log.getAcceptedValue(stateId));
     }
-    return false;
+    return chosenValues;
+  }
+
+  // Called by the Learner when the cluster has consented to a value for a state id.
+  public void reportChosen(int stateId, Value value) {
+    log.setChosen(stateId, value);
+  }
+
+  // Called by the Learner once every state id below the given one is covered by a snapshot.
+  public void truncate(int stateId) {
+    log.truncate(stateId);
   }
 }
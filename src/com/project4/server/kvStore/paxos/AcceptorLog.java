@@ -0,0 +1,164 @@
+package com.project4.server.kvStore.paxos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-state-id log of an Acceptor's accepted suggestions.  For every state id that has not been
+ * truncated, the log holds the accepted suggestion id, the accepted value, and whether the cluster
+ * has chosen that value.
+ * <p>
+ * Entries are kept in primitive ring buffers indexed by state id, rather than one object per entry.
+ * Suggestion ids are stored as a suggestion number plus an index into a table of server ids, so an
+ * entry costs a few bytes beyond its value.  Only state ids from the truncation point onwards are
+ * stored, so the log stays as small as the number of state ids since the last snapshot.
+ */
+public class AcceptorLog {
+  private static final int INITIAL_CAPACITY = 64;
+  private static final short NONE = -1;
+
+  private int firstStateId; // Lowest state id held by the log
+  private int lastStateId; // Highest state id with an accepted value, or firstStateId - 1
+  private int capacity;
+  private int[] acceptedNums;
+  private short[] acceptedServers;
+  private Value[] acceptedValues;
+  private BitSet chosen;
+  private List<String> serverIds = new ArrayList<>();
+  private Map<String, Short> serverIndexes = new HashMap<>();
+
+  public AcceptorLog() {
+    this.firstStateId = 1;
+    this.lastStateId = 0;
+    this.capacity = INITIAL_CAPACITY;
+    this.acceptedNums = new int[capacity];
+    this.acceptedServers = new short[capacity];
+    this.acceptedValues = new Value[capacity];
+    this.chosen = new BitSet(capacity);
+    Arrays.fill(acceptedServers, NONE);
+  }
+
+  public synchronized int getFirstStateId() {
+    return firstStateId;
+  }
+
+  public synchronized int getLastStateId() {
+    return lastStateId;
+  }
+
+  // Records a suggestion accepted for a state id.  State ids below the log are ignored.
+  public synchronized void accept(int stateId, SuggestionId suggestionId, Value value) {
+    if (stateId < firstStateId) {
+      return;
+    }
+    ensureCapacity(stateId);
+    int slot = slotOf(stateId);
+    acceptedNums[slot] = suggestionId.getSuggestNum();
+    acceptedServers[slot] = indexOf(suggestionId.getServerId());
+    acceptedValues[slot] = value;
+    lastStateId = Math.max(lastStateId, stateId);
+  }
+
+  // Records the value chosen by the cluster for a state id, replacing any other accepted value.
+  public synchronized void setChosen(int stateId, Value value) {
+    if (stateId < firstStateId) {
+      return;
+    }
+    ensureCapacity(stateId);
+    int slot = slotOf(stateId);
+    acceptedValues[slot] = value;
+    chosen.set(slot);
+    lastStateId = Math.max(lastStateId, stateId);
+  }
+
+  public synchronized boolean isChosen(int stateId) {
+    return holds(stateId) && chosen.get(slotOf(stateId));
+  }
+
+  // Returns the accepted suggestion id for a state id, or null if none.
+  public synchronized SuggestionId getAcceptedId(int stateId) {
+    if (!holds(stateId) || acceptedServers[slotOf(stateId)] == NONE) {
+      return null;
+    }
+    int slot = slotOf(stateId);
+    return new SuggestionId(acceptedNums[slot], serverIds.get(acceptedServers[slot]));
+  }
+
+  // Returns the accepted (or chosen) value for a state id, or null if none.
+  public synchronized Value getAcceptedValue(int stateId) {
+    if (!holds(stateId)) {
+      return null;
+    }
+    return acceptedValues[slotOf(stateId)];
+  }
+
+  // Drops every entry below the given state id, which must already be covered by a snapshot.
+  public synchronized void truncate(int stateId) {
+    while (firstStateId < stateId && firstStateId <= lastStateId) {
+      clearSlot(slotOf(firstStateId));
+      firstStateId++;
+    }
+    if (firstStateId < stateId) {
+      firstStateId = stateId;
+    }
+    lastStateId = Math.max(lastStateId, firstStateId - 1);
+  }
+
+  private boolean holds(int stateId) {
+    return stateId >= firstStateId && stateId <= lastStateId;
+  }
+
+  private int slotOf(int stateId) {
+    return Math.floorMod(stateId, capacity);
+  }
+
+  private void clearSlot(int slot) {
+    acceptedNums[slot] = 0;
+    acceptedServers[slot] = NONE;
+    acceptedValues[slot] = null;
+    chosen.clear(slot);
+  }
+
+  private short indexOf(String serverId) {
+    Short index = serverIndexes.get(serverId);
+    if (index == null) {
+      index = (short) serverIds.size();
+      serverIds.add(serverId);
+      serverIndexes.put(serverId, index);
+    }
+    return index;
+  }
+
+  // Grows the ring buffers until the state id fits alongside every entry already held.
+  private void ensureCapacity(int stateId) {
+    if (stateId - firstStateId < capacity) {
+      return;
+    }
+    int newCapacity = capacity;
+    while (stateId - firstStateId >= newCapacity) {
+      newCapacity *= 2;
+    }
+    int[] newNums = new int[newCapacity];
+    short[] newServers = new short[newCapacity];
+    Value[] newValues = new Value[newCapacity];
+    BitSet newChosen = new BitSet(newCapacity);
+    Arrays.fill(newServers, NONE);
+    for (int id = firstStateId; id <= lastStateId; id++) {
+      int oldSlot = slotOf(id);
+      int newSlot = Math.floorMod(id, newCapacity);
+      newNums[newSlot] = acceptedNums[oldSlot];
+      newServers[newSlot] = acceptedServers[oldSlot];
+      newValues[newSlot] = acceptedValues[oldSlot];
+      newChosen.set(newSlot, chosen.get(oldSlot));
+    }
+    capacity = newCapacity;
+    acceptedNums = newNums;
+    acceptedServers = newServers;
+    acceptedValues = newValues;
+    chosen = newChosen;
+  }
+}
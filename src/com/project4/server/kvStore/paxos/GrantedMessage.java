@@ -1,33 +1,56 @@
 package com.project4.server.kvStore.paxos;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Represents an Acceptor's response to a Proposer's request for permission to suggest a value.
  * Response types include: Granted, NACK (if the Acceptor is ignoring the request based on its
- * suggestion id), and STATE NACK (if the Acceptor is ignoring the request based on its state id).
+ * suggestion id), and STATE NACK (if the Acceptor has compacted the requested state id away, so
+ * the Proposer must catch up from a snapshot before it can lead).
+ * A grant carries the suggestion ids and values the Acceptor has accepted, by state id, from the
+ * requested state id onwards.  A NACK carries the suggestion id the Acceptor has already promised,
+ * which tells the Proposer which server currently holds leadership.
  */
 public class GrantedMessage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   private Permission permission;
-  private SuggestionId lastAcceptedId;
-  private Value lastAcceptedValue;
+  private SortedMap<Integer, SuggestionId> lastAcceptedIds;
+  private SortedMap<Integer, Value> lastAcceptedValues;
+  private SuggestionId promisedId;
+
+  public GrantedMessage(Permission permission, SortedMap<Integer, SuggestionId> lastAcceptedIds,
+                        SortedMap<Integer, Value> lastAcceptedValues) {
+    this.permission = permission;
+    this.lastAcceptedIds = lastAcceptedIds;
+    this.lastAcceptedValues = lastAcceptedValues;
+    this.promisedId = null;
+  }
 
-  public GrantedMessage(Permission permission, SuggestionId lastAcceptedId, Value lastAcceptedValue) {
+  public GrantedMessage(Permission permission, SuggestionId promisedId) {
     this.permission = permission;
-    this.lastAcceptedId = lastAcceptedId;
-    this.lastAcceptedValue = lastAcceptedValue;
+    this.lastAcceptedIds = new TreeMap<>();
+    this.lastAcceptedValues = new TreeMap<>();
+    this.promisedId = promisedId;
   }
 
   public Permission getPermission() {
     return permission;
   }
 
-  public SuggestionId getLastAcceptedId() {
-    return lastAcceptedId;
+  public SortedMap<Integer, SuggestionId> getLastAcceptedIds() {
+    return Collections.unmodifiableSortedMap(lastAcceptedIds);
+  }
+
+  public SortedMap<Integer, Value> getLastAcceptedValues() {
+    return Collections.unmodifiableSortedMap(lastAcceptedValues);
   }
 
-  public Value getLastAcceptedValue() {
-    return lastAcceptedValue;
+  public SuggestionId getPromisedId() {
+    return promisedId;
   }
 
   public enum Permission {
@@ -0,0 +1,478 @@
+package com.project4.server.kvStore.paxos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries Paxos messages between replicas over persistent NIO channels, as an alternative to Java
+ * RMI.  Each replica listens on one port, and opens one connection to each other replica the first
+ * time it sends it a message.  Every Response method of PaxosMessenger is sent as a frame:
+ * <pre>
+ *   [int length][long request id][byte call][payload]
+ * </pre>
+ * where length counts every byte after itself, and the payload is encoded with PaxosCodec.  Replies
+ * use the same framing, with the request id of the call they answer, so many calls share one
+ * connection at once.  A single selector thread does all socket I/O.  Calls are served on a worker
+ * pool, and callers block on a future that is completed when the reply arrives.
+ * <p>
+ * Dispatch methods are never sent between replicas, so the PaxosMessenger returned by connect()
+ * refuses them.
+ */
+public class NioTransport {
+  private static final byte REPLY = -1;
+  private static final byte FAILURE = -2;
+  private static final int HEADER_BYTES = 13;
+  private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+  private static final int INITIAL_BUFFER_BYTES = 8192;
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+  private Selector selector;
+  private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Run by the selector thread
+  private AtomicLong nextRequestId = new AtomicLong();
+  private ExecutorService workers;
+  private long callTimeoutMillis;
+
+  public NioTransport(ExecutorService workers, long callTimeoutMillis) throws IOException {
+    this.selector = Selector.open();
+    this.workers = workers;
+    this.callTimeoutMillis = callTimeoutMillis;
+    Thread loop = new Thread(this::runLoop, "paxos-nio");
+    loop.setDaemon(true);
+    loop.start();
+  }
+
+  /**
+   * Serves calls from other replicas on the given port, using the given local messenger.
+   */
+  public void listen(int port, PaxosMessenger local) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().setReuseAddress(true);
+    server.bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    runOnLoop(() -> {
+      try {
+        server.register(selector, SelectionKey.OP_ACCEPT, local);
+      } catch (IOException e) {
+        System.err.println("Could not listen for replicas on port " + port + ": " + e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Returns a messenger that sends calls to the replica listening at the given address.  The
+   * connection is opened on the first call, and opened again after it fails.
+   */
+  public PaxosMessenger connect(String host, int port) {
+    return new Peer(new InetSocketAddress(host, port));
+  }
+
+  // ------------------------------------- Selector loop -------------------------------------------
+
+  private void runLoop() {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        return;
+      }
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        try {
+          if (key.isValid() && key.isAcceptable()) {
+            accept(key);
+          }
+          if (key.isValid() && key.isReadable()) {
+            read((Connection) key.attachment());
+          }
+          if (key.isValid() && key.isWritable()) {
+            write((Connection) key.attachment());
+          }
+        } catch (IOException e) {
+          if (key.attachment() instanceof Connection) {
+            close((Connection) key.attachment());
+          }
+        }
+      }
+    }
+  }
+
+  private void runOnLoop(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  private void accept(SelectionKey key) throws IOException {
+    SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Connection connection = new Connection(channel, (PaxosMessenger) key.attachment());
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+  }
+
+  // Reads whatever has arrived, and handles every complete frame in it.
+  private void read(Connection connection) throws IOException {
+    if (connection.channel.read(connection.readBuffer) < 0) {
+      close(connection);
+      return;
+    }
+    ByteBuffer buffer = connection.readBuffer;
+    buffer.flip();
+    int needed = 0;
+    while (buffer.remaining() >= 4) {
+      int length = buffer.getInt(buffer.position());
+      if (length < HEADER_BYTES - 4 || length > MAX_FRAME_BYTES) {
+        throw new IOException("Invalid frame length " + length);
+      }
+      if (buffer.remaining() < 4 + length) {
+        needed = 4 + length;
+        break;
+      }
+      buffer.getInt();
+      long requestId = buffer.getLong();
+      byte call = buffer.get();
+      byte[] payload = new byte[length - (HEADER_BYTES - 4)];
+      buffer.get(payload);
+      handleFrame(connection, requestId, call, payload);
+    }
+    buffer.compact();
+    if (needed > buffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocate(Integer.highestOneBit(needed) << 1);
+      buffer.flip();
+      larger.put(buffer);
+      connection.readBuffer = larger;
+    }
+  }
+
+  private void write(Connection connection) throws IOException {
+    synchronized (connection.writes) {
+      while (!connection.writes.isEmpty()) {
+        ByteBuffer next = connection.writes.peek();
+        connection.channel.write(next);
+        if (next.hasRemaining()) {
+          return; // The socket is full, so wait to be selected again
+        }
+        connection.writes.poll();
+      }
+      connection.key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void send(Connection connection, ByteBuffer frame) {
+    synchronized (connection.writes) {
+      connection.writes.add(frame);
+    }
+    runOnLoop(() -> {
+      if (connection.key != null && connection.key.isValid()) {
+        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    });
+  }
+
+  private void close(Connection connection) {
+    if (connection.key != null) {
+      connection.key.cancel();
+    }
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      // Already closed
+    }
+    for (CompletableFuture<Object> reply : connection.pending.values()) {
+      reply.completeExceptionally(new ConnectException("Connection to replica closed"));
+    }
+    connection.pending.clear();
+  }
+
+  // ------------------------------------- Frame handling ------------------------------------------
+
+  // Calls are served on a worker, since they may block.  Replies complete the caller's future.
+  private void handleFrame(Connection connection, long requestId, byte call, byte[] payload) {
+    if (connection.local != null) {
+      workers.execute(() -> serve(connection, requestId, call, payload));
+      return;
+    }
+    CompletableFuture<Object> reply = connection.pending.remove(requestId);
+    if (reply == null) {
+      return; // The caller has given up
+    }
+    try {
+      if (call == REPLY) {
+        reply.complete(decode(payload));
+      } else {
+        reply.completeExceptionally(new RemoteException((String) decode(payload)));
+      }
+    } catch (IOException e) {
+      reply.completeExceptionally(new RemoteException("Could not decode reply", e));
+    }
+  }
+
+  private void serve(Connection connection, long requestId, byte call, byte[] payload) {
+    ByteBuffer frame;
+    try {
+      try {
+        Object result = invoke(connection.local, Call.values()[call], (Object[]) decode(payload));
+        frame = encodeFrame(requestId, REPLY, result);
+      } catch (RemoteException | RuntimeException e) {
+        frame = encodeFrame(requestId, FAILURE, String.valueOf(e.getMessage()));
+      }
+    } catch (IOException e) {
+      System.err.println("Could not encode reply to replica: " + e.getMessage());
+      return;
+    }
+    send(connection, frame);
+  }
+
+  private static Object invoke(PaxosMessenger local, Call call, Object[] args) throws RemoteException {
+    switch (call) {
+      case REGISTER_THIS_ID:
+        return local.registerThisId((String) args[0]);
+      case REQUEST_PERMISSION:
+        return local.requestPermission((SuggestionId) args[0], (Integer) args[1]);
+      case SUGGEST_VALUE:
+        return local.suggestValue((SuggestionId) args[0], (Value) args[1], (Integer) args[2]);
+      case REPORT_CONSENSUS:
+        local.reportConsensus((Value) args[0], (Integer) args[1]);
+        return null;
+      case GET_STATE_ID:
+        return local.getStateId();
+      case GET_ACCEPTED_STATE_ID:
+        return local.getAcceptedStateId();
+      case FORWARD_VALUE:
+        return local.forwardValue((Value) args[0]);
+      case RENEW_LEASE:
+        return local.renewLease((SuggestionId) args[0]);
+      case READ_FROM_LEADER:
+        return local.readFromLeader((String) args[0]);
+      case READ_SNAPSHOT_CHUNK:
+        return local.readSnapshotChunk((Long) args[0], (Integer) args[1]);
+      case GET_CHOSEN_VALUES:
+        return local.getChosenValues((Integer) args[0], (Integer) args[1]);
+      default:
+        throw new RemoteException("Unknown call " + call);
+    }
+  }
+
+  private static ByteBuffer encodeFrame(long requestId, byte call, Object payload) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0); // Length, filled in below
+    out.writeLong(requestId);
+    out.writeByte(call);
+    PaxosCodec.writeObject(out, payload);
+    ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+    frame.putInt(0, frame.capacity() - 4);
+    return frame;
+  }
+
+  private static Object decode(byte[] payload) throws IOException {
+    return PaxosCodec.readObject(new DataInputStream(new ByteArrayInputStream(payload)));
+  }
+
+  // ------------------------------------- Helper classes ------------------------------------------
+
+  private enum Call {
+    REGISTER_THIS_ID, REQUEST_PERMISSION, SUGGEST_VALUE, REPORT_CONSENSUS, GET_STATE_ID,
+    GET_ACCEPTED_STATE_ID, FORWARD_VALUE, RENEW_LEASE, READ_FROM_LEADER, READ_SNAPSHOT_CHUNK,
+    GET_CHOSEN_VALUES
+  }
+
+  /**
+   * One open channel.  Connections accepted from other replicas serve calls with the local
+   * messenger.  Connections opened to other replicas track the calls still waiting for a reply.
+   */
+  private static class Connection {
+    private SocketChannel channel;
+    private SelectionKey key;
+    private PaxosMessenger local; // Null for connections opened to other replicas
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+    private Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+
+    private Connection(SocketChannel channel, PaxosMessenger local) {
+      this.channel = channel;
+      this.local = local;
+    }
+  }
+
+  /**
+   * PaxosMessenger for a remote replica, sending each call over the replica's connection.
+   */
+  private class Peer implements PaxosMessenger {
+    private InetSocketAddress address;
+    private Connection connection = null;
+
+    private Peer(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    private synchronized Connection connection() throws IOException {
+      if (connection == null || !connection.channel.isOpen()) {
+        SocketChannel channel = SocketChannel.open();
+        try {
+          channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+          channel.socket().setTcpNoDelay(true);
+          channel.configureBlocking(false);
+        } catch (IOException e) {
+          channel.close();
+          throw e;
+        }
+        Connection opened = new Connection(channel, null);
+        runOnLoop(() -> {
+          try {
+            opened.key = channel.register(selector, SelectionKey.OP_READ, opened);
+          } catch (IOException e) {
+            close(opened);
+          }
+        });
+        connection = opened;
+      }
+      return connection;
+    }
+
+    private Object call(Call call, Object... args) throws RemoteException {
+      long requestId = nextRequestId.incrementAndGet();
+      CompletableFuture<Object> reply = new CompletableFuture<>();
+      Connection current = null;
+      try {
+        current = connection();
+        current.pending.put(requestId, reply);
+        send(current, encodeFrame(requestId, (byte) call.ordinal(), args));
+        return reply.get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (IOException e) {
+        throw new ConnectException("Could not reach replica at " + address, e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RemoteException) {
+          throw (RemoteException) e.getCause();
+        }
+        throw new RemoteException("Call to " + address + " failed", e.getCause());
+      } catch (TimeoutException e) {
+        throw new RemoteException("Call to " + address + " timed out");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted while calling " + address);
+      } finally {
+        if (current != null) {
+          current.pending.remove(requestId);
+        }
+      }
+    }
+
+    @Override
+    public boolean registerThisId(String id) throws RemoteException {
+      return (Boolean) call(Call.REGISTER_THIS_ID, id);
+    }
+
+    @Override
+    public PermissionOutcome sendPermissionMessages(SuggestionId suggestionId, int stateId) throws RemoteException {
+      throw new RemoteException("Dispatch methods are not sent between replicas");
+    }
+
+    @Override
+    public boolean sendSuggestionMessages(SuggestionId suggestionId, Value value, int stateId) throws RemoteException {
+      throw new RemoteException("Dispatch methods are not sent between replicas");
+    }
+
+    @Override
+    public void sendConsensusMessages(Value value, int stateId) throws RemoteException {
+      throw new RemoteException("Dispatch methods are not sent between replicas");
+    }
+
+    @Override
+    public boolean sendForwardMessage(String leaderId, Value value) throws RemoteException {
+      throw new RemoteException("Dispatch methods are not sent between replicas");
+    }
+
+    @Override
+    public boolean sendLeaseMessages(SuggestionId leaderId) throws RemoteException {
+      throw new RemoteException("Dispatch methods are not sent between replicas");
+    }
+
+    @Override
+    public int sendReadIndexMessages() throws RemoteException {
+      throw new RemoteException("Dispatch methods are not sent between replicas");
+    }
+
+    @Override
+    public GrantedMessage requestPermission(SuggestionId suggestionId, int stateId) throws RemoteException {
+      return (GrantedMessage) call(Call.REQUEST_PERMISSION, suggestionId, stateId);
+    }
+
+    @Override
+    public boolean suggestValue(SuggestionId suggestionId, Value value, int stateId) throws RemoteException {
+      return (Boolean) call(Call.SUGGEST_VALUE, suggestionId, value, stateId);
+    }
+
+    @Override
+    public void reportConsensus(Value value, int stateId) throws RemoteException {
+      call(Call.REPORT_CONSENSUS, value, stateId);
+    }
+
+    @Override
+    public int getStateId() throws RemoteException {
+      return (Integer) call(Call.GET_STATE_ID);
+    }
+
+    @Override
+    public int getAcceptedStateId() throws RemoteException {
+      return (Integer) call(Call.GET_ACCEPTED_STATE_ID);
+    }
+
+    @Override
+    public boolean forwardValue(Value value) throws RemoteException {
+      return (Boolean) call(Call.FORWARD_VALUE, value);
+    }
+
+    @Override
+    public boolean renewLease(SuggestionId leaderId) throws RemoteException {
+      return (Boolean) call(Call.RENEW_LEASE, leaderId);
+    }
+
+    @Override
+    public String readFromLeader(String key) throws RemoteException {
+      return (String) call(Call.READ_FROM_LEADER, key);
+    }
+
+    @Override
+    public StateChunk readSnapshotChunk(long offset, int maxBytes) throws RemoteException {
+      return (StateChunk) call(Call.READ_SNAPSHOT_CHUNK, offset, maxBytes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SortedMap<Integer, Value> getChosenValues(int fromStateId, int maxValues) throws RemoteException {
+      return (SortedMap<Integer, Value>) call(Call.GET_CHOSEN_VALUES, fromStateId, maxValues);
+    }
+  }
+}
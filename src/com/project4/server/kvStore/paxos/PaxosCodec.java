@@ -0,0 +1,392 @@
+package com.project4.server.kvStore.paxos;
+
+import com.project4.server.kvStore.Command;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Compact binary encoding for Paxos messages, used in place of Java serialization wherever they
+ * leave the process: NIO frames between replicas and write-ahead log records.  Java serialization
+ * writes a class descriptor and a header for every object, which costs more than most Paxos
+ * messages carry.
+ * <p>
+ * State ids and lengths are written as varints, seven bits to a byte, so most take one or two
+ * bytes.  A suggestion id is packed into a single varint long, with the suggestion number in the
+ * high half and the server id in the low half when the server id is a plain number, as it is for
+ * replicas started from ServerMain.  Other server ids are written after the packed long as a string.
+ * Strings are written as UTF-8 bytes after a varint of their length plus one, so that zero can mark
+ * a null string.  Maps keyed by state id write each key as its distance from the previous one.
+ * A client command's id is written after its operands, as its origin string and, if it has one,
+ * a varint sequence number.
+ */
+public final class PaxosCodec {
+  private static final byte NULL = 0;
+  private static final byte BOOLEAN = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte STRING = 4;
+  private static final byte SUGGESTION_ID = 5;
+  private static final byte VALUE = 6;
+  private static final byte GRANTED_MESSAGE = 7;
+  private static final byte PERMISSION_OUTCOME = 8;
+  private static final byte STATE_CHUNK = 9;
+  private static final byte VALUE_MAP = 10;
+  private static final byte ARGUMENTS = 11;
+
+  private PaxosCodec() {
+  }
+
+  // ------------------------------------------ Varints -------------------------------------------
+
+  public static void writeVarInt(DataOutput out, int n) throws IOException {
+    while ((n & ~0x7F) != 0) {
+      out.writeByte((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    out.writeByte(n);
+  }
+
+  public static int readVarInt(DataInput in) throws IOException {
+    int n = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.readByte();
+      n |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+    throw new StreamCorruptedException("Varint is longer than 5 bytes");
+  }
+
+  public static void writeVarLong(DataOutput out, long n) throws IOException {
+    while ((n & ~0x7FL) != 0) {
+      out.writeByte((int) (n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    out.writeByte((int) n);
+  }
+
+  public static long readVarLong(DataInput in) throws IOException {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      n |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+    throw new StreamCorruptedException("Varint is longer than 10 bytes");
+  }
+
+  // ------------------------------------- Message fields -----------------------------------------
+
+  public static void writeString(DataOutput out, String s) throws IOException {
+    if (s == null) {
+      writeVarInt(out, 0);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length + 1);
+    out.write(bytes);
+  }
+
+  public static String readString(DataInput in) throws IOException {
+    int length = readVarInt(in) - 1;
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Writes a suggestion id, which may be null.
+  public static void writeSuggestionId(DataOutput out, SuggestionId id) throws IOException {
+    if (id == null) {
+      writeVarLong(out, 0);
+      writeString(out, null);
+      return;
+    }
+    int packedServer = packServerId(id.getServerId());
+    writeVarLong(out, (long) id.getSuggestNum() << 32 | (packedServer & 0xFFFFFFFFL));
+    if (packedServer == 0) {
+      writeString(out, id.getServerId());
+    }
+  }
+
+  public static SuggestionId readSuggestionId(DataInput in) throws IOException {
+    long packed = readVarLong(in);
+    int suggestNum = (int) (packed >> 32);
+    int packedServer = (int) packed;
+    if (packedServer != 0) {
+      return new SuggestionId(suggestNum, Integer.toString(packedServer - 1));
+    }
+    String serverId = readString(in);
+    return serverId == null ? null : new SuggestionId(suggestNum, serverId);
+  }
+
+  // Returns the server id plus one if it is a plain number, or 0 if it must be written as a string.
+  private static int packServerId(String serverId) {
+    if (serverId.isEmpty() || serverId.length() > 9) {
+      return 0;
+    }
+    for (int i = 0; i < serverId.length(); i++) {
+      if (serverId.charAt(i) < '0' || serverId.charAt(i) > '9') {
+        return 0;
+      }
+    }
+    if (serverId.length() > 1 && serverId.charAt(0) == '0') {
+      return 0; // Would not read back as the same string
+    }
+    return Integer.parseInt(serverId) + 1;
+  }
+
+  // Writes a value, which may be null.  Only the command and its operands are sent.
+  public static void writeValue(DataOutput out, Value value) throws IOException {
+    if (value == null) {
+      out.writeByte(0);
+      return;
+    }
+    out.writeByte(value.getCommand().ordinal() + 1);
+    switch (value.getCommand()) {
+      case BATCH:
+        List<Value> commands = value.getCommands();
+        writeVarInt(out, commands.size());
+        for (Value command : commands) {
+          writeValue(out, command);
+        }
+        break;
+      case NO_OP:
+        break;
+      default:
+        writeString(out, value.getKey());
+        writeString(out, value.getValue());
+        writeString(out, value.getOrigin());
+        if (value.getOrigin() != null) {
+          writeVarLong(out, value.getSeq());
+        }
+    }
+  }
+
+  public static Value readValue(DataInput in) throws IOException {
+    int ordinal = in.readByte() - 1;
+    if (ordinal < 0) {
+      return null;
+    }
+    if (ordinal >= Command.values().length) {
+      throw new StreamCorruptedException("Unknown command " + ordinal);
+    }
+    Command command = Command.values()[ordinal];
+    switch (command) {
+      case BATCH:
+        int size = readVarInt(in);
+        List<Value> commands = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          commands.add(readValue(in));
+        }
+        return new Value(commands);
+      case NO_OP:
+        return new Value();
+      default:
+        String key = readString(in);
+        String operand = readString(in);
+        String origin = readString(in);
+        return new Value(command, key, operand, origin, origin == null ? 0 : readVarLong(in));
+    }
+  }
+
+  public static void writeValueMap(DataOutput out, SortedMap<Integer, Value> values) throws IOException {
+    writeVarInt(out, values.size());
+    int previous = 0;
+    for (Map.Entry<Integer, Value> entry : values.entrySet()) {
+      writeVarInt(out, entry.getKey() - previous);
+      writeValue(out, entry.getValue());
+      previous = entry.getKey();
+    }
+  }
+
+  public static SortedMap<Integer, Value> readValueMap(DataInput in) throws IOException {
+    int size = readVarInt(in);
+    SortedMap<Integer, Value> values = new TreeMap<>();
+    int stateId = 0;
+    for (int i = 0; i < size; i++) {
+      stateId += readVarInt(in);
+      values.put(stateId, readValue(in));
+    }
+    return values;
+  }
+
+  private static void writeSuggestionIdMap(DataOutput out, SortedMap<Integer, SuggestionId> ids)
+          throws IOException {
+    writeVarInt(out, ids.size());
+    int previous = 0;
+    for (Map.Entry<Integer, SuggestionId> entry : ids.entrySet()) {
+      writeVarInt(out, entry.getKey() - previous);
+      writeSuggestionId(out, entry.getValue());
+      previous = entry.getKey();
+    }
+  }
+
+  private static SortedMap<Integer, SuggestionId> readSuggestionIdMap(DataInput in) throws IOException {
+    int size = readVarInt(in);
+    SortedMap<Integer, SuggestionId> ids = new TreeMap<>();
+    int stateId = 0;
+    for (int i = 0; i < size; i++) {
+      stateId += readVarInt(in);
+      ids.put(stateId, readSuggestionId(in));
+    }
+    return ids;
+  }
+
+  public static void writeGrantedMessage(DataOutput out, GrantedMessage message) throws IOException {
+    out.writeByte(message.getPermission().ordinal());
+    if (message.getPermission() == GrantedMessage.Permission.GRANTED) {
+      writeSuggestionIdMap(out, message.getLastAcceptedIds());
+      writeValueMap(out, message.getLastAcceptedValues());
+    } else {
+      writeSuggestionId(out, message.getPromisedId());
+    }
+  }
+
+  public static GrantedMessage readGrantedMessage(DataInput in) throws IOException {
+    int ordinal = in.readUnsignedByte();
+    if (ordinal >= GrantedMessage.Permission.values().length) {
+      throw new StreamCorruptedException("Unknown permission " + ordinal);
+    }
+    GrantedMessage.Permission permission = GrantedMessage.Permission.values()[ordinal];
+    if (permission == GrantedMessage.Permission.GRANTED) {
+      SortedMap<Integer, SuggestionId> ids = readSuggestionIdMap(in);
+      return new GrantedMessage(permission, ids, readValueMap(in));
+    }
+    return new GrantedMessage(permission, readSuggestionId(in));
+  }
+
+  public static void writePermissionOutcome(DataOutput out, PermissionOutcome outcome) throws IOException {
+    out.writeBoolean(outcome.majority);
+    writeValueMap(out, outcome.highestAcceptedValues);
+    writeSuggestionId(out, outcome.highestPromisedId);
+  }
+
+  public static PermissionOutcome readPermissionOutcome(DataInput in) throws IOException {
+    boolean majority = in.readBoolean();
+    PermissionOutcome outcome = new PermissionOutcome(majority, readValueMap(in));
+    outcome.highestPromisedId = readSuggestionId(in);
+    return outcome;
+  }
+
+  public static void writeStateChunk(DataOutput out, StateChunk chunk) throws IOException {
+    writeVarInt(out, chunk.getSnapshotStateId());
+    writeVarLong(out, chunk.getOffset());
+    writeVarLong(out, chunk.getSnapshotLength());
+    writeVarInt(out, chunk.getData().length);
+    out.write(chunk.getData());
+    out.writeInt((int) chunk.getChecksum());
+  }
+
+  public static StateChunk readStateChunk(DataInput in) throws IOException {
+    int snapshotStateId = readVarInt(in);
+    long offset = readVarLong(in);
+    long snapshotLength = readVarLong(in);
+    byte[] data = new byte[readVarInt(in)];
+    in.readFully(data);
+    return new StateChunk(snapshotStateId, offset, snapshotLength, data, in.readInt() & 0xFFFFFFFFL);
+  }
+
+  // ------------------------------------- Tagged objects -----------------------------------------
+
+  /**
+   * Writes any argument or result of a PaxosMessenger call, prefixed by a tag naming its type.
+   * Object arrays hold the arguments of one call.
+   */
+  public static void writeObject(DataOutput out, Object object) throws IOException {
+    if (object == null) {
+      out.writeByte(NULL);
+    } else if (object instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) object);
+    } else if (object instanceof Integer) {
+      out.writeByte(INTEGER);
+      writeVarInt(out, (Integer) object);
+    } else if (object instanceof Long) {
+      out.writeByte(LONG);
+      writeVarLong(out, (Long) object);
+    } else if (object instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) object);
+    } else if (object instanceof SuggestionId) {
+      out.writeByte(SUGGESTION_ID);
+      writeSuggestionId(out, (SuggestionId) object);
+    } else if (object instanceof Value) {
+      out.writeByte(VALUE);
+      writeValue(out, (Value) object);
+    } else if (object instanceof GrantedMessage) {
+      out.writeByte(GRANTED_MESSAGE);
+      writeGrantedMessage(out, (GrantedMessage) object);
+    } else if (object instanceof PermissionOutcome) {
+      out.writeByte(PERMISSION_OUTCOME);
+      writePermissionOutcome(out, (PermissionOutcome) object);
+    } else if (object instanceof StateChunk) {
+      out.writeByte(STATE_CHUNK);
+      writeStateChunk(out, (StateChunk) object);
+    } else if (object instanceof SortedMap) {
+      out.writeByte(VALUE_MAP);
+      @SuppressWarnings("unchecked")
+      SortedMap<Integer, Value> values = (SortedMap<Integer, Value>) object;
+      writeValueMap(out, values);
+    } else if (object instanceof Object[]) {
+      Object[] arguments = (Object[]) object;
+      out.writeByte(ARGUMENTS);
+      writeVarInt(out, arguments.length);
+      for (Object argument : arguments) {
+        writeObject(out, argument);
+      }
+    } else {
+      throw new IllegalArgumentException("Cannot encode " + object.getClass().getName());
+    }
+  }
+
+  public static Object readObject(DataInput in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case BOOLEAN:
+        return in.readBoolean();
+      case INTEGER:
+        return readVarInt(in);
+      case LONG:
+        return readVarLong(in);
+      case STRING:
+        return readString(in);
+      case SUGGESTION_ID:
+        return readSuggestionId(in);
+      case VALUE:
+        return readValue(in);
+      case GRANTED_MESSAGE:
+        return readGrantedMessage(in);
+      case PERMISSION_OUTCOME:
+        return readPermissionOutcome(in);
+      case STATE_CHUNK:
+        return readStateChunk(in);
+      case VALUE_MAP:
+        return readValueMap(in);
+      case ARGUMENTS:
+        Object[] arguments = new Object[readVarInt(in)];
+        for (int i = 0; i < arguments.length; i++) {
+          arguments[i] = readObject(in);
+        }
+        return arguments;
+      default:
+        throw new StreamCorruptedException("Unknown tag " + tag);
+    }
+  }
+}
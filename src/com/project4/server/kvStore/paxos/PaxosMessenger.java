@@ -2,6 +2,7 @@ package com.project4.server.kvStore.paxos;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.SortedMap;
 
 /**
  * Interface for classes that handle Paxos message passing via Java RMI.  "Dispatch" methods are
@@ -28,6 +29,32 @@ public interface PaxosMessenger extends Remote {
 
   void sendConsensusMessages(Value value, int stateId) throws RemoteException;
 
+  /**
+   * Hands a value to the replica that currently leads the cluster, so it can be proposed without
+   * competing with the leader's suggestion id.
+   *
+   * @param leaderId server id of the leader
+   * @param value    value to be proposed
+   * @return true if the leader took the value, otherwise false
+   */
+  boolean sendForwardMessage(String leaderId, Value value) throws RemoteException;
+
+  /**
+   * Asks every replica to renew the leader lease for the given suggestion id.
+   *
+   * @param leaderId suggestion id held by the leader
+   * @return true if a majority renewed the lease, otherwise false
+   */
+  boolean sendLeaseMessages(SuggestionId leaderId) throws RemoteException;
+
+  /**
+   * Asks every replica for the highest state id it has accepted a value for.
+   *
+   * @return the highest state id reported by a majority of replicas, or -1 if a majority could not
+   *         be reached
+   */
+  int sendReadIndexMessages() throws RemoteException;
+
   // ----------------------------------- Response Methods -----------------------------------------
 
   GrantedMessage requestPermission(SuggestionId suggestionId, int stateId) throws RemoteException;
@@ -37,4 +64,54 @@ public interface PaxosMessenger extends Remote {
   void reportConsensus(Value value, int stateId) throws RemoteException;
 
   int getStateId() throws RemoteException;
+
+  /**
+   * Returns the highest state id this replica has accepted or executed a value for.
+   */
+  int getAcceptedStateId() throws RemoteException;
+
+  /**
+   * Adds a value forwarded by another replica to this replica's proposal queue.
+   *
+   * @param value value to be proposed
+   * @return true if this replica is leading the cluster and took the value, otherwise false
+   */
+  boolean forwardValue(Value value) throws RemoteException;
+
+  /**
+   * Renews the leader lease for the given suggestion id, if this replica's Acceptor still promises
+   * it.
+   *
+   * @param leaderId suggestion id held by the leader
+   * @return true if the lease was renewed, otherwise false
+   */
+  boolean renewLease(SuggestionId leaderId) throws RemoteException;
+
+  /**
+   * Reads a key on the replica holding the leader lease.
+   *
+   * @param key the key
+   * @return the value associated with this key, or null if none
+   * @throws RemoteException if this replica does not hold the lease
+   */
+  String readFromLeader(String key) throws RemoteException;
+
+  /**
+   * Reads part of this replica's latest snapshot, for a replica that has fallen behind.
+   *
+   * @param offset   byte offset into the snapshot file
+   * @param maxBytes most bytes to return
+   * @return the chunk at the offset, or null if this replica has not saved a snapshot
+   */
+  StateChunk readSnapshotChunk(long offset, int maxBytes) throws RemoteException;
+
+  /**
+   * Returns values this replica knows were chosen, for a replica that has fallen behind.
+   *
+   * @param fromStateId first state id to return
+   * @param maxValues   most values to return
+   * @return chosen values by state id, stopping at the first state id not known to be chosen, or
+   *         null if the state id is already compacted into this replica's snapshot
+   */
+  SortedMap<Integer, Value> getChosenValues(int fromStateId, int maxValues) throws RemoteException;
 }
@@ -1,23 +1,38 @@
 package com.project4.server.kvStore.paxos;
 
 import java.io.Serializable;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * Data structure to track the outcome of a request for permission to suggest a value.  The outcome
- * includes whether or not a cluster majority responded, and the previously accepted value with the
- * highest suggestion id, if applicable.
+ * includes whether or not a cluster majority responded, and, for each state id, the previously
+ * accepted value with the highest suggestion id, if applicable.  When permission is refused, the
+ * outcome carries the highest suggestion id promised by the cluster, so the Proposer can find the
+ * current leader.
  */
 public class PermissionOutcome implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   public boolean majority;
-  public Value highestAcceptedValue;
+  public SortedMap<Integer, Value> highestAcceptedValues;
+  public SuggestionId highestPromisedId;
 
-  public PermissionOutcome(boolean majority, Value highestAcceptedValue) {
+  public PermissionOutcome(boolean majority, SortedMap<Integer, Value> highestAcceptedValues) {
     this.majority = majority;
-    this.highestAcceptedValue = highestAcceptedValue;
+    this.highestAcceptedValues = highestAcceptedValues;
+    this.highestPromisedId = null;
   }
 
   public PermissionOutcome(boolean majority) {
     this.majority = majority;
-    this.highestAcceptedValue = null;
+    this.highestAcceptedValues = new TreeMap<>();
+    this.highestPromisedId = null;
+  }
+
+  public PermissionOutcome(SuggestionId highestPromisedId) {
+    this.majority = false;
+    this.highestAcceptedValues = new TreeMap<>();
+    this.highestPromisedId = highestPromisedId;
   }
 }
@@ -1,24 +1,53 @@
 package com.project4.server.kvStore.paxos;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Producer queue to store client requests.  The Proposer acts as a queue consumer and will suggest
  * these requests for cluster consensus.  The queue also tracks the "state id" for operations in the
  * cluster.  The first unanimous operation in the cluster has state id 1, the second has id 2, etc.
  * This allows participants to discover when they have fallen behind on consensus reports.
+ * <p>
+ * Values that the Proposer has suggested to the cluster are moved to an in-flight list until the
+ * cluster consents to them, and are returned to the front of the queue if the suggestion fails.
+ * Values that the Proposer hands to the cluster leader are moved to a separate forwarded list,
+ * where they wait for the leader's consensus report.  Forwarded values that are not reported in
+ * time are returned to the front of the queue.  The leader may still choose the forwarded copy, but
+ * both copies carry the same command id, so replicas execute only the first one chosen.
+ * <p>
+ * Several queued values may be proposed together as a single BATCH value.  When the cluster
+ * consents to a batch, every value in it is dropped from the queue and marked executed.  The
+ * Proposer blocks on the queue while it is empty and is woken when a value is added.
  */
 public class ProposalQueue {
   private LinkedList<Value> queue;
+  private LinkedList<Value> inFlight;
+  private LinkedList<Value> forwarded;
   private int stateId;
 
   public ProposalQueue() {
     this.queue = new LinkedList<>();
+    this.inFlight = new LinkedList<>();
+    this.forwarded = new LinkedList<>();
     this.stateId = 1;
   }
 
   public synchronized void addTask(Value t) {
     queue.addLast(t);
+    notifyAll();
+  }
+
+  // Blocks until the queue holds at least the given number of values, or the timeout passes.
+  public synchronized void awaitSize(int size, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (queue.size() < size && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
   }
 
   public synchronized int getStateId() {
@@ -27,6 +56,19 @@ public class ProposalQueue {
 
   public synchronized void setStateId(int id) {
     stateId = id;
+    notifyAll();
+  }
+
+  // Blocks until every state id below the given one has been executed, or the timeout passes.
+  // Returns true if the state id was reached.
+  public synchronized boolean awaitStateId(int id, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (stateId < id && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return stateId >= id;
   }
 
   public synchronized Value peek() {
@@ -36,18 +78,114 @@ public class ProposalQueue {
     return queue.getFirst();
   }
 
+  // Returns the values at the front of the queue, up to the given count and size, as one value.
+  public synchronized Value peekBatch(int maxValues, int maxBytes) {
+    if (queue.size() == 0) {
+      return null;
+    }
+    List<Value> batch = new ArrayList<>();
+    int size = 0;
+    for (Value value : queue) {
+      if (batch.size() >= maxValues || (!batch.isEmpty() && size + value.estimateSize() > maxBytes)) {
+        break;
+      }
+      batch.add(value);
+      size += value.estimateSize();
+    }
+    if (batch.size() == 1) {
+      return batch.get(0);
+    }
+    return new Value(batch);
+  }
+
+  // Removes a batch from the front of the queue, to be suggested for a single state id.
+  public synchronized Value takeBatch(int maxValues, int maxBytes) {
+    Value batch = peekBatch(maxValues, maxBytes);
+    if (batch == null) {
+      return null;
+    }
+    for (Value command : batch.getCommands()) {
+      queue.removeFirst();
+      inFlight.addLast(command);
+    }
+    return batch;
+  }
+
+  // Used to return in-flight values to the front of the queue if their suggestion failed.
+  public synchronized void requeue(Value value) {
+    List<Value> commands = value.getCommands();
+    for (int i = commands.size() - 1; i >= 0; i--) {
+      if (removeIdentical(inFlight, commands.get(i))) {
+        queue.addFirst(commands.get(i));
+      }
+    }
+    notifyAll();
+  }
+
+  public synchronized int size() {
+    return queue.size();
+  }
+
   public synchronized boolean isEmpty() {
     return queue.size() == 0;
   }
 
-  // Used to drop a value from the queue if the cluster has consented to that value.
-  public synchronized void dequeue(Value value) {
-    if (queue.size() == 0) {
-      return;
+  // Used to park values that have been handed to the leader for proposal.
+  public synchronized void markForwarded(Value value) {
+    long now = System.currentTimeMillis();
+    for (Value command : value.getCommands()) {
+      if (queue.remove(command)) {
+        command.setForwardedAt(now);
+        forwarded.addLast(command);
+      }
     }
-    if (queue.getFirst().equals(value)) {
-      queue.getFirst().setExecuted();
-      queue.removeFirst();
+  }
+
+  // Used to return forwarded values to the queue if the leader has not reported consensus in time.
+  public synchronized void requeueStaleForwards(long timeoutMillis) {
+    long now = System.currentTimeMillis();
+    Iterator<Value> it = forwarded.descendingIterator();
+    while (it.hasNext()) {
+      Value value = it.next();
+      if (now - value.getForwardedAt() >= timeoutMillis) {
+        it.remove();
+        queue.addFirst(value);
+      }
+    }
+    notifyAll();
+  }
+
+  // Used to drop values from the queue if the cluster has consented to them at the given state id.
+  public synchronized void dequeue(Value value, int stateId) {
+    for (Value command : value.getCommands()) {
+      if (!removeExecuted(inFlight, command, stateId) && !removeExecuted(forwarded, command, stateId)) {
+        removeExecuted(queue, command, stateId);
+      }
+    }
+  }
+
+  // Equal values may come from different clients, so in-flight values are matched by identity.
+  private boolean removeIdentical(LinkedList<Value> values, Value value) {
+    Iterator<Value> it = values.iterator();
+    while (it.hasNext()) {
+      if (it.next() == value) {
+        it.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean removeExecuted(LinkedList<Value> values, Value value, int stateId) {
+    Iterator<Value> it = values.iterator();
+    while (it.hasNext()) {
+      Value queued = it.next();
+      if (queued.equals(value)) {
+        queued.setExecuted(stateId);
+        it.remove();
+        return true;
+      }
     }
+    return false;
   }
-}
\ No newline at end of file
+}
@@ -1,7 +1,11 @@
 package com.project4.server.kvStore.paxos;
 
 import java.rmi.RemoteException;
-import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Proposer, for Paxos purposes.  This class operates on a separate thread and acts as a consumer
@@ -9,62 +13,214 @@ import java.util.NoSuchElementException;
  * get permission to suggest a value to the cluster, and will use values from the queue when Paxos
  * rules permit.
  * <p>
+ * The Proposer runs Multi-Paxos with a stable leader.  Once it is granted permission for a
+ * suggestion id, it keeps that suggestion id for every later state id and skips straight to the
+ * suggestion phase, until an Acceptor refuses a suggestion.  A Proposer that is refused permission
+ * because another server leads forwards its values to that leader instead of competing with it.
+ * <p>
+ * While leading, the Proposer keeps up to kvstore.pipeline.window state ids in flight at once.
+ * Each state id is suggested on its own worker thread, and Learners execute the results in state id
+ * order.  When leadership is lost, in-flight state ids are allowed to finish before the Proposer
+ * asks permission again, and any values the cluster had already accepted are suggested again
+ * before new values from the queue.
+ * <p>
+ * Queued values are proposed in batches, so that many client commands share one Paxos instance.  A
+ * batch holds up to kvstore.batch.maxValues values or kvstore.batch.maxBytes bytes.  If
+ * kvstore.batch.windowMillis is set, the Proposer waits up to that long for a batch to fill.
+ * <p>
+ * If leases are enabled, the leader renews its promise with a heartbeat every third of a lease.
+ * Once a majority has renewed it, no other server can be granted permission until the lease runs
+ * out, so the leader may serve reads locally.  The leader counts its lease from before the heartbeat
+ * was sent, less a margin for clock drift.
+ * <p>
  * This class also acts as a Designated Learner.  After collecting Accepted messages from the
  * cluster, it will know if a consensus has been reached. If so, it will send updates to classes
  * that implement the Learner interface.
  */
 public class Proposer extends Thread {
+  public static final int PIPELINE_WINDOW = Integer.getInteger("kvstore.pipeline.window", 4);
+  private static final long FORWARD_TIMEOUT_MILLIS = 2000;
+  private static final int MAX_BATCH_VALUES = Integer.getInteger("kvstore.batch.maxValues", 64);
+  private static final int MAX_BATCH_BYTES = Integer.getInteger("kvstore.batch.maxBytes", 16384);
+  private static final long BATCH_WINDOW_MILLIS = Long.getLong("kvstore.batch.windowMillis", 0);
+
   ProposalQueue queue;
   private PaxosMessenger messenger;
   private String servId;
   private int suggestionId;
+  private volatile SuggestionId leaderId; // Suggestion id held as the stable leader, or null
+  private int nextStateId; // Next state id to suggest a value for, while leading
+  private Semaphore window = new Semaphore(PIPELINE_WINDOW);
+  private ExecutorService stateWorkers = Executors.newFixedThreadPool(PIPELINE_WINDOW);
+  private long leaseNanos; // Length of a leader lease, or 0 if leases are disabled
+  private volatile long leaseExpiresAt; // System.nanoTime() when this leader's lease runs out
+  private int readBarrier = 0; // Highest state id known to be chosen while leading
+  private ScheduledExecutorService heartbeats;
 
 
-  public Proposer(ProposalQueue queue, PaxosMessenger messenger, String servId) {
+  public Proposer(ProposalQueue queue, PaxosMessenger messenger, String servId, long leaseMillis) {
     this.queue = queue;
     this.messenger = messenger;
     this.servId = servId;
-    this.suggestionId = 0;
+    this.suggestionId = 1;
+    this.leaderId = null;
+    this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    this.leaseExpiresAt = System.nanoTime();
+    if (leaseNanos > 0) {
+      heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread heartbeat = new Thread(task, "lease-heartbeat");
+        heartbeat.setDaemon(true);
+        return heartbeat;
+      });
+      long interval = leaseMillis / 3;
+      heartbeats.scheduleWithFixedDelay(this::renewLease, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public boolean isLeader() {
+    return leaderId != null;
+  }
+
+  // Returns true while this server leads the cluster and a majority has renewed its lease.
+  public boolean holdsLease() {
+    return leaseNanos > 0 && leaderId != null && System.nanoTime() - leaseExpiresAt < 0;
+  }
+
+  // Returns the highest state id known to be chosen.  A leader must have executed every state id up
+  // to this one before serving a read locally.
+  public synchronized int getReadBarrier() {
+    return readBarrier;
+  }
+
+  private synchronized void raiseReadBarrier(int stateId) {
+    readBarrier = Math.max(readBarrier, stateId);
+  }
+
+  private void renewLease() {
+    SuggestionId lease = leaderId;
+    if (lease == null) {
+      return;
+    }
+    long sentAt = System.nanoTime();
+    try {
+      if (messenger.sendLeaseMessages(lease) && leaderId == lease) {
+        leaseExpiresAt = sentAt + leaseNanos - leaseNanos / 10;
+      }
+    } catch (RemoteException e) {
+      // The lease will run out unless a later heartbeat succeeds
+    }
   }
 
   @Override
   public void run() {
     while (true) {
-      while (queue.isEmpty()) {
-        // Do nothing. We have no values to propose.
+      try {
+        while (queue.isEmpty()) {
+          // We have no values to propose, so sleep until a client adds one.
+          queue.awaitSize(1, FORWARD_TIMEOUT_MILLIS);
+          queue.requeueStaleForwards(FORWARD_TIMEOUT_MILLIS);
+        }
+        queue.awaitSize(MAX_BATCH_VALUES, BATCH_WINDOW_MILLIS);
+      } catch (InterruptedException e) {
+        return;
       }
-      suggestionId++;
-      int stateId = queue.getStateId();
       try {
-        SuggestionId suggestNum = new SuggestionId(suggestionId, servId);
-        PermissionOutcome outcome = messenger.sendPermissionMessages(suggestNum, stateId);
-        if (!outcome.majority) {
+        if (leaderId == null && !takeLeadership()) {
           continue;
         }
-        Value suggestedValue = chooseSuggestion(outcome);
-        boolean suggestionAccepted = messenger.sendSuggestionMessages(suggestNum, suggestedValue, stateId);
-        if (suggestionAccepted) {
-          messenger.sendConsensusMessages(suggestedValue, stateId);
-        }
       } catch (RemoteException e) {
-        // Do nothing
+        continue;
+      }
+      window.acquireUninterruptibly();
+      Value suggestedValue = queue.takeBatch(MAX_BATCH_VALUES, MAX_BATCH_BYTES);
+      if (suggestedValue == null || leaderId == null) {
+        if (suggestedValue != null) {
+          queue.requeue(suggestedValue);
+        }
+        window.release();
+        continue;
+      }
+      suggestInStateId(leaderId, suggestedValue, nextStateId++, true);
+    }
+  }
+
+  // Ask the cluster for permission, then suggest again any values already accepted for state ids
+  // that have not been executed yet, filling gaps with no-ops.  Every attempt uses a new suggestion
+  // number: acceptors grant an equal one again, so reusing it after a failed suggestion could let a
+  // quorum that missed an accepted value choose a different one at the same suggestion id.
+  private boolean takeLeadership() throws RemoteException {
+    window.acquireUninterruptibly(PIPELINE_WINDOW); // Wait for in-flight state ids to finish
+    window.release(PIPELINE_WINDOW);
+    SuggestionId suggestNum = new SuggestionId(++suggestionId, servId);
+    int stateId = queue.getStateId();
+    PermissionOutcome outcome = messenger.sendPermissionMessages(suggestNum, stateId);
+    if (!outcome.majority) {
+      handleRefusal(outcome.highestPromisedId);
+      return false;
+    }
+    leaseExpiresAt = System.nanoTime(); // A lease from an earlier term no longer counts
+    leaderId = suggestNum;
+    nextStateId = stateId;
+    if (!outcome.highestAcceptedValues.isEmpty()) {
+      int lastAcceptedStateId = outcome.highestAcceptedValues.lastKey();
+      while (nextStateId <= lastAcceptedStateId) {
+        Value acceptedValue = outcome.highestAcceptedValues.get(nextStateId);
+        if (acceptedValue == null) {
+          acceptedValue = new Value();
+        }
+        window.acquireUninterruptibly();
+        suggestInStateId(suggestNum, acceptedValue, nextStateId++, false);
       }
     }
+    // Values chosen by an earlier leader are among those suggested again, so reads wait for them
+    raiseReadBarrier(nextStateId - 1);
+    if (heartbeats != null) {
+      heartbeats.execute(this::renewLease);
+    }
+    return true;
   }
 
-  // Choose the value provided during the permission request phase, or a value from the proposal
-  // queue if nothing comes back from the cluster.
-  private Value chooseSuggestion(PermissionOutcome outcome) {
-    Value suggestedValue;
-    if (outcome.highestAcceptedValue != null) {
-      suggestedValue = outcome.highestAcceptedValue;
-    } else {
+  // Runs the suggestion phase for one state id on a worker thread.  Values taken from our own queue
+  // are returned to it if the suggestion fails.
+  private void suggestInStateId(SuggestionId suggestNum, Value value, int stateId, boolean fromQueue) {
+    stateWorkers.execute(() -> {
+      boolean suggestionAccepted = false;
       try {
-        suggestedValue = queue.peek();
-      } catch (NoSuchElementException e) {
-        suggestedValue = new Value();
+        suggestionAccepted = messenger.sendSuggestionMessages(suggestNum, value, stateId);
+        if (suggestionAccepted) {
+          raiseReadBarrier(stateId);
+          messenger.sendConsensusMessages(value, stateId);
+        }
+      } catch (RemoteException e) {
+        suggestionAccepted = false;
+      } finally {
+        if (!suggestionAccepted) {
+          if (leaderId == suggestNum) {
+            leaderId = null; // Another Proposer has taken over, so we must ask permission again
+          }
+          if (fromQueue) {
+            queue.requeue(value);
+          }
+        }
+        window.release();
+      }
+    });
+  }
+
+  // Forward the next values to the server holding the promised suggestion id.  If there is no other
+  // leader, or it cannot take the values, catch up to its suggestion number so that our next
+  // attempt moves past it.
+  private void handleRefusal(SuggestionId promisedId) throws RemoteException {
+    if (promisedId == null) {
+      return;
+    }
+    if (!promisedId.getServerId().equals(servId)) {
+      Value value = queue.peekBatch(MAX_BATCH_VALUES, MAX_BATCH_BYTES);
+      if (value != null && messenger.sendForwardMessage(promisedId.getServerId(), value)) {
+        queue.markForwarded(value);
+        return;
       }
     }
-    return suggestedValue;
+    suggestionId = Math.max(suggestionId, promisedId.getSuggestNum());
   }
 }
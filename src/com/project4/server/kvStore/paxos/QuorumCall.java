@@ -0,0 +1,81 @@
+package com.project4.server.kvStore.paxos;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+
+/**
+ * Sends one Paxos message to every replica in parallel and collects the responses.  The caller
+ * gets the responses as soon as a quorum condition is met, while slower replicas finish in the
+ * background and their responses are discarded.  Replicas that fail to respond are recorded as a
+ * null response, so that quorum conditions can detect when a majority is no longer possible.
+ */
+public class QuorumCall<T> {
+  private final List<T> responses = new ArrayList<>();
+  private final int numReplicas;
+  private final Predicate<List<T>> quorumReached;
+
+  private QuorumCall(int numReplicas, Predicate<List<T>> quorumReached) {
+    this.numReplicas = numReplicas;
+    this.quorumReached = quorumReached;
+  }
+
+  /**
+   * Sends a request to every replica and waits until the quorum condition holds, every replica has
+   * responded, or the timeout passes.
+   *
+   * @param workers       threads used to contact the replicas
+   * @param replicas      replicas to contact
+   * @param request       message to send to each replica
+   * @param quorumReached condition on the responses so far (null for failed replicas)
+   * @param timeoutMillis longest time to wait for responses
+   * @return the responses received before returning
+   */
+  public static <T> List<T> send(ExecutorService workers, Collection<PaxosMessenger> replicas,
+                                 Request<T> request, Predicate<List<T>> quorumReached,
+                                 long timeoutMillis) {
+    QuorumCall<T> call = new QuorumCall<>(replicas.size(), quorumReached);
+    for (PaxosMessenger replica : replicas) {
+      workers.execute(() -> {
+        T response;
+        try {
+          response = request.send(replica);
+        } catch (RemoteException | RuntimeException e) {
+          response = null; // This replica has crashed and will be excluded
+        }
+        call.addResponse(response);
+      });
+    }
+    return call.awaitQuorum(timeoutMillis);
+  }
+
+  private synchronized void addResponse(T response) {
+    responses.add(response);
+    notifyAll();
+  }
+
+  private synchronized List<T> awaitQuorum(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (responses.size() < numReplicas && !quorumReached.test(responses) && remaining > 0) {
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return new ArrayList<>(responses);
+  }
+
+  /**
+   * A Paxos message to be sent to a single replica.
+   */
+  public interface Request<T> {
+    T send(PaxosMessenger replica) throws RemoteException;
+  }
+}
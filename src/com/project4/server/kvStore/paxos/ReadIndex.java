@@ -0,0 +1,75 @@
+package com.project4.server.kvStore.paxos;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Shares read index rounds between concurrent reads.  A round asks a majority of replicas for the
+ * highest state id they have accepted a value for.  Every chosen value was accepted by a majority,
+ * so the highest reply covers every value chosen before the round started, and a replica that has
+ * executed up to that state id can serve a read without it being stale.
+ * <p>
+ * A read must be covered by a round that starts after the read arrives.  Reads that arrive while a
+ * round is running wait for the next round, which starts as soon as the running one ends, so a
+ * burst of reads costs at most two rounds.
+ */
+public class ReadIndex {
+  private ExecutorService workers;
+  private Round round;
+  private boolean running = false;
+  private CompletableFuture<Integer> next = null; // Round waiting for the running one to end
+
+  public ReadIndex(ExecutorService workers, Round round) {
+    this.workers = workers;
+    this.round = round;
+  }
+
+  /**
+   * Joins the next read index round, starting it if no round is running.
+   *
+   * @return the read index, once the round ends
+   */
+  public CompletableFuture<Integer> request() {
+    CompletableFuture<Integer> joined;
+    boolean start;
+    synchronized (this) {
+      if (next == null) {
+        next = new CompletableFuture<>();
+      }
+      joined = next;
+      start = !running;
+      if (start) {
+        running = true;
+        next = null;
+      }
+    }
+    if (start) {
+      workers.execute(() -> runRounds(joined));
+    }
+    return joined;
+  }
+
+  // Runs the given round, then any round that reads joined while it was running.
+  private void runRounds(CompletableFuture<Integer> current) {
+    while (current != null) {
+      try {
+        current.complete(round.confirm());
+      } catch (RemoteException | RuntimeException e) {
+        current.completeExceptionally(e);
+      }
+      synchronized (this) {
+        current = next;
+        next = null;
+        running = current != null;
+      }
+    }
+  }
+
+  /**
+   * One read index round.
+   */
+  public interface Round {
+    int confirm() throws RemoteException;
+  }
+}
@@ -0,0 +1,67 @@
+package com.project4.server.kvStore.paxos;
+
+import java.io.Serializable;
+import java.util.zip.CRC32;
+
+/**
+ * One piece of a replica's snapshot file, sent to a replica that has fallen behind.  A chunk names
+ * the state id of the snapshot it was cut from, so that the receiver can start again if the sender
+ * replaces its snapshot part way through a transfer, and carries a CRC32 of its bytes.
+ */
+public class StateChunk implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private int snapshotStateId;
+  private long offset;
+  private long snapshotLength;
+  private byte[] data;
+  private long checksum;
+
+  public StateChunk(int snapshotStateId, long offset, long snapshotLength, byte[] data) {
+    this.snapshotStateId = snapshotStateId;
+    this.offset = offset;
+    this.snapshotLength = snapshotLength;
+    this.data = data;
+    this.checksum = checksumOf(data);
+  }
+
+  // Rebuilds a chunk decoded by PaxosCodec, keeping the sender's checksum so it can still be checked.
+  StateChunk(int snapshotStateId, long offset, long snapshotLength, byte[] data, long checksum) {
+    this.snapshotStateId = snapshotStateId;
+    this.offset = offset;
+    this.snapshotLength = snapshotLength;
+    this.data = data;
+    this.checksum = checksum;
+  }
+
+  public int getSnapshotStateId() {
+    return snapshotStateId;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getSnapshotLength() {
+    return snapshotLength;
+  }
+
+  public byte[] getData() {
+    return data;
+  }
+
+  long getChecksum() {
+    return checksum;
+  }
+
+  // Returns true if the chunk's bytes still match the checksum computed by the sender.
+  public boolean isIntact() {
+    return checksumOf(data) == checksum;
+  }
+
+  private static long checksumOf(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    return crc.getValue();
+  }
+}
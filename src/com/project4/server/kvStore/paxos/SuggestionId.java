@@ -7,6 +7,8 @@ import java.io.Serializable;
  * server's unique server id being the tiebreaker.
  */
 public class SuggestionId implements Serializable, Comparable<SuggestionId> {
+  private static final long serialVersionUID = 1L;
+
   private int suggestNum;
   private String serverId;
 
@@ -15,6 +17,14 @@ public class SuggestionId implements Serializable, Comparable<SuggestionId> {
     this.serverId = serverId;
   }
 
+  public int getSuggestNum() {
+    return suggestNum;
+  }
+
+  public String getServerId() {
+    return serverId;
+  }
+
   @Override
   public int compareTo(SuggestionId o) {
     if (suggestNum > o.suggestNum) {
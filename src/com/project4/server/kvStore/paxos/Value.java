@@ -3,27 +3,65 @@ package com.project4.server.kvStore.paxos;
 import com.project4.server.kvStore.Command;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A "Value" to be used for Paxos proposals.  Each value is a requested client command, either PUT
- * or DELETE.  Values track whether or not they have been executed by the cluster.
+ * or DELETE.  Values track whether or not they have been executed by the cluster.  A BATCH value
+ * carries several client commands, so that they can be decided in a single Paxos instance and
+ * executed in order.  Threads waiting on a value's execution block on its completion future, which
+ * is completed when the cluster consents to the value.
+ * <p>
+ * A client command may carry an id: the server it was submitted to (its origin) and a sequence
+ * number unique to that server.  The same command can be proposed twice, for example when a value
+ * handed to the leader is proposed again after the leader was slow to report it, so copies are
+ * matched by id and replicas execute each id only once.
  */
 public class Value implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   private Command command;
   private String key;
   private String value;
+  private List<Value> batch;
+  private String origin; // Server the command was submitted to, or null if it has no id
+  private long seq; // Number of the command among those submitted to its origin
   private boolean executed = false;
+  private transient long forwardedAt = 0; // Time this value was handed to the leader, if ever
+  private transient CompletableFuture<Integer> completion; // Not sent to other replicas
 
   public Value(Command command, String key, String value) {
+    this(command, key, value, null, 0);
+  }
+
+  public Value(Command command, String key, String value, String origin, long seq) {
     this.command = command;
     this.key = key;
     this.value = value;
+    this.batch = null;
+    this.origin = origin;
+    this.seq = seq;
   }
 
   public Value() {
     this.command = Command.NO_OP;
     this.key = null;
     this.value = null;
+    this.batch = null;
+  }
+
+  public Value(List<Value> batch) {
+    this.command = Command.BATCH;
+    this.key = null;
+    this.value = null;
+    this.batch = new ArrayList<>(batch);
   }
 
   public Command getCommand() {
@@ -38,14 +76,75 @@ public class Value implements Serializable {
     return value;
   }
 
-  public synchronized void setExecuted() {
-    executed = true;
+  public String getOrigin() {
+    return origin;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+
+  // Returns the client commands carried by this value, in execution order.
+  public List<Value> getCommands() {
+    if (command == Command.BATCH) {
+      return Collections.unmodifiableList(batch);
+    }
+    return Collections.singletonList(this);
+  }
+
+  // Rough count of the bytes this value adds to a proposal, used to bound batch sizes.
+  public int estimateSize() {
+    int size = 8;
+    if (key != null) {
+      size += key.length();
+    }
+    if (value != null) {
+      size += value.length();
+    }
+    if (batch != null) {
+      for (Value batched : batch) {
+        size += batched.estimateSize();
+      }
+    }
+    return size;
+  }
+
+  public void setExecuted(int stateId) {
+    synchronized (this) {
+      executed = true;
+    }
+    getCompletion().complete(stateId);
   }
 
   public synchronized boolean notExecuted() {
     return !executed;
   }
 
+  // Completed with the value's state id once this value has been executed.
+  public synchronized CompletableFuture<Integer> getCompletion() {
+    if (completion == null) {
+      completion = new CompletableFuture<>();
+    }
+    return completion;
+  }
+
+  // Blocks the calling thread until this value has been executed, and returns its state id.
+  public int awaitExecution(long timeoutMillis) throws InterruptedException, TimeoutException {
+    try {
+      return getCompletion().get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  synchronized long getForwardedAt() {
+    return forwardedAt;
+  }
+
+  synchronized void setForwardedAt(long forwardedAt) {
+    this.forwardedAt = forwardedAt;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -53,10 +152,18 @@ public class Value implements Serializable {
     }
     if (obj instanceof Value) {
       Value otherVal = (Value) obj;
-      boolean keyMatch = this.key != null && this.key.equals(otherVal.key);
-      boolean valMatch = this.value != null && this.value.equals(otherVal.value);
-      return keyMatch && valMatch && this.command == otherVal.command;
+      // Values travel between replicas as copies, so DELETE values (with no value) must still match
+      boolean keyMatch = Objects.equals(this.key, otherVal.key);
+      boolean valMatch = Objects.equals(this.value, otherVal.value);
+      boolean batchMatch = Objects.equals(this.batch, otherVal.batch);
+      boolean idMatch = Objects.equals(this.origin, otherVal.origin) && this.seq == otherVal.seq;
+      return keyMatch && valMatch && batchMatch && idMatch && this.command == otherVal.command;
     }
     return false;
   }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(command, key, value, batch, origin, seq);
+  }
 }
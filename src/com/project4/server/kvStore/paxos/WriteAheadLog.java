@@ -0,0 +1,382 @@
+package com.project4.server.kvStore.paxos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead log for a replica's Paxos state.  Acceptors log every permission they grant
+ * and every value they accept before responding, and Learners log every value they execute, so
+ * that a restarted replica keeps its promises and can rebuild its key-value store.
+ * <p>
+ * Each record is written as [length][payload][CRC32], with the payload encoded by PaxosCodec.  A
+ * torn record at the end of the last segment, left by a crash mid-write, is detected on replay and
+ * cut off.  A damaged record anywhere else, or an intact record that cannot be decoded, means the
+ * log is corrupt, and replay fails with a StreamCorruptedException.
+ * <p>
+ * The durability mode trades latency for safety.  FSYNC forces every record to disk before its
+ * writer continues.  GROUP lets concurrent writers share one force: the first writer to need a sync
+ * forces everything written so far, while later writers wait for it.  NONE leaves flushing to the
+ * operating system, so recent records may be lost if the machine crashes.
+ * <p>
+ * The log is split into numbered segment files.  When a snapshot of the key-value store is taken,
+ * the log rolls over to a new segment, and once the snapshot is durable every earlier segment can be
+ * deleted.  The log must be replayed once before any record is appended.
+ */
+public class WriteAheadLog {
+  private static final byte PROMISE = 4;
+  private static final byte ACCEPT = 5;
+  private static final byte COMMIT = 6;
+
+  private static final String SEGMENT_SUFFIX = ".wal";
+
+  private final File dir;
+  private final String name;
+  private final Durability durability;
+  private FileChannel channel = null; // Segment currently being appended to
+  private int segment = 0; // Number of the current segment
+  private long segmentStart = 0; // Log position at the start of the current segment
+  private long writtenPosition = 0; // End of the last record written
+  private long syncedPosition = 0; // End of the last record forced to disk
+  private boolean syncing = false;
+
+  public WriteAheadLog(File dir, String name, Durability durability) throws IOException {
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dir);
+    }
+    this.dir = dir;
+    this.name = name;
+    this.durability = durability;
+  }
+
+  // ------------------------------------ Writing records -----------------------------------------
+
+  // Logs a permission granted to a suggestion id.  Returns the position to pass to sync().
+  public long appendPromise(SuggestionId promisedId) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(PROMISE);
+      PaxosCodec.writeSuggestionId(out, promisedId);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return append(bytes.toByteArray());
+  }
+
+  // Logs a value accepted for a state id.  Returns the position to pass to sync().
+  public long appendAccept(int stateId, SuggestionId suggestionId, Value value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(ACCEPT);
+      PaxosCodec.writeVarInt(out, stateId);
+      PaxosCodec.writeSuggestionId(out, suggestionId);
+      PaxosCodec.writeValue(out, value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return append(bytes.toByteArray());
+  }
+
+  // Logs a value executed for a state id.  Returns the position to pass to sync().
+  public long appendCommit(int stateId, Value value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(COMMIT);
+      PaxosCodec.writeVarInt(out, stateId);
+      PaxosCodec.writeValue(out, value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return append(bytes.toByteArray());
+  }
+
+  private long append(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+    record.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+    record.flip();
+    synchronized (this) {
+      try {
+        while (record.hasRemaining()) {
+          writtenPosition += channel.write(record, writtenPosition - segmentStart);
+        }
+        if (durability == Durability.FSYNC) {
+          channel.force(false);
+          syncedPosition = writtenPosition;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return writtenPosition;
+    }
+  }
+
+  /**
+   * Blocks until every record up to the given position is on disk, as required by the durability
+   * mode.  Call this outside of any lock, so that concurrent writers can share a single force.
+   */
+  public void sync(long position) {
+    if (durability != Durability.GROUP) {
+      return;
+    }
+    while (true) {
+      long target;
+      FileChannel forcing;
+      synchronized (this) {
+        while (syncing && syncedPosition < position) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (syncedPosition >= position) {
+          return;
+        }
+        syncing = true;
+        target = writtenPosition;
+        forcing = channel;
+      }
+      // Force without holding the monitor, so other writers keep appending to the next group
+      boolean forced = false;
+      try {
+        forcing.force(false);
+        forced = true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        synchronized (this) {
+          if (forced) {
+            syncedPosition = Math.max(syncedPosition, target);
+          }
+          syncing = false;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  // ------------------------------------ Segments -----------------------------------------------
+
+  /**
+   * Starts a new segment.  Everything written so far is forced to disk first.
+   *
+   * @return the number of the new segment
+   */
+  public synchronized int roll() throws IOException {
+    while (syncing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while rolling the write-ahead log");
+      }
+    }
+    channel.force(false);
+    syncedPosition = writtenPosition;
+    channel.close();
+    openSegment(segment + 1);
+    segmentStart = writtenPosition;
+    return segment;
+  }
+
+  // Deletes every segment numbered below the given one.
+  public synchronized void deleteSegmentsBefore(int firstKept) {
+    for (int number : listSegments()) {
+      if (number < firstKept && !segmentFile(number).delete()) {
+        System.err.println("Could not delete write-ahead log segment " + segmentFile(number));
+      }
+    }
+  }
+
+  private void openSegment(int number) throws IOException {
+    channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segment = number;
+  }
+
+  private File segmentFile(int number) {
+    return new File(dir, name + "." + number + SEGMENT_SUFFIX);
+  }
+
+  private List<Integer> listSegments() {
+    List<Integer> numbers = new ArrayList<>();
+    String[] files = dir.list();
+    if (files == null) {
+      return numbers;
+    }
+    for (String file : files) {
+      if (file.startsWith(name + ".") && file.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          String number = file.substring(name.length() + 1, file.length() - SEGMENT_SUFFIX.length());
+          numbers.add(Integer.parseInt(number));
+        } catch (NumberFormatException e) {
+          // Not a segment of this log
+        }
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  // ------------------------------------ Replaying records ---------------------------------------
+
+  /**
+   * Replays every intact record in the segments numbered from firstSegment onwards, in the order
+   * written, then cuts off any torn record at the end of the last segment.  Appends continue in the
+   * last segment.
+   *
+   * @throws StreamCorruptedException if a record other than the last is damaged, or cannot be
+   *                                  decoded
+   */
+  public synchronized void replay(int firstSegment, Replayer replayer) throws IOException {
+    List<Integer> segments = new ArrayList<>();
+    for (int number : listSegments()) {
+      if (number >= firstSegment) {
+        segments.add(number);
+      }
+    }
+    int last = segments.isEmpty() ? firstSegment : segments.get(segments.size() - 1);
+    for (int number : segments) {
+      try (FileChannel segmentChannel = FileChannel.open(segmentFile(number).toPath(),
+              StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        replaySegment(segmentChannel, number, replayer, number == last);
+      }
+    }
+    openSegment(last);
+    segmentStart = 0;
+    writtenPosition = channel.size();
+    syncedPosition = writtenPosition;
+  }
+
+  // Replays a segment's records.  Only the last segment may end in a torn record, which is cut off.
+  private void replaySegment(FileChannel segmentChannel, int number, Replayer replayer,
+                             boolean lastSegment) throws IOException {
+    long position = 0;
+    long size = segmentChannel.size();
+    ByteBuffer header = ByteBuffer.allocate(4);
+    while (position + 4 <= size) {
+      header.clear();
+      segmentChannel.read(header, position);
+      header.flip();
+      int length = header.getInt();
+      if (length <= 0 || position + 8 + length > size) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length + 4);
+      segmentChannel.read(body, position + 4);
+      body.flip();
+      byte[] payload = new byte[length];
+      body.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (body.getInt() != (int) crc.getValue()) {
+        break;
+      }
+      replayRecord(payload, replayer);
+      position += 8 + length;
+    }
+    if (position < size) {
+      if (!lastSegment || !isTornTail(segmentChannel, position, size)) {
+        throw new StreamCorruptedException("Corrupt write-ahead log record at offset " + position
+                + " of segment " + number);
+      }
+      System.err.println("Discarding torn write-ahead log record at offset " + position);
+      segmentChannel.truncate(position);
+    }
+  }
+
+  // A crash mid-write leaves the last record cut short, or damaged with nothing after it, or leaves
+  // the file extended with zeros that were never written.  A damaged record followed by more
+  // records is corruption instead.
+  private static boolean isTornTail(FileChannel segmentChannel, long position, long size)
+          throws IOException {
+    if (position + 4 > size) {
+      return true;
+    }
+    ByteBuffer header = ByteBuffer.allocate(4);
+    segmentChannel.read(header, position);
+    header.flip();
+    int length = header.getInt();
+    if (length > 0) {
+      return position + 8 + length >= size;
+    }
+    ByteBuffer rest = ByteBuffer.allocate((int) Math.min(size - position, 1 << 16));
+    for (long offset = position; offset < size; offset += rest.limit()) {
+      rest.clear();
+      int read = segmentChannel.read(rest, offset);
+      if (read <= 0) {
+        return false;
+      }
+      rest.flip();
+      while (rest.hasRemaining()) {
+        if (rest.get() != 0) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private void replayRecord(byte[] payload, Replayer replayer) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte type = in.readByte();
+    switch (type) {
+      case PROMISE:
+        replayer.promised(PaxosCodec.readSuggestionId(in));
+        break;
+      case ACCEPT:
+        int acceptedStateId = PaxosCodec.readVarInt(in);
+        SuggestionId acceptedId = PaxosCodec.readSuggestionId(in);
+        replayer.accepted(acceptedStateId, acceptedId, PaxosCodec.readValue(in));
+        break;
+      case COMMIT:
+        int committedStateId = PaxosCodec.readVarInt(in);
+        replayer.committed(committedStateId, PaxosCodec.readValue(in));
+        break;
+      default:
+        throw new StreamCorruptedException("Unknown write-ahead log record type " + type);
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * How records are forced to disk.
+   */
+  public enum Durability {
+    FSYNC,
+    GROUP,
+    NONE
+  }
+
+  /**
+   * Receives the records of a log being replayed.
+   */
+  public interface Replayer {
+    void promised(SuggestionId promisedId);
+
+    void accepted(int stateId, SuggestionId suggestionId, Value value);
+
+    void committed(int stateId, Value value);
+  }
+}